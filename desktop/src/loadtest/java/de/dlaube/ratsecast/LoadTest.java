@@ -0,0 +1,306 @@
+package de.dlaube.ratsecast;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Load test of server modes with many simulated viewers.<BR>
+ * Server runs in same JVM on synthetic screen, where one window sized area
+ * changes every 100 ms. Viewers are served by one selector thread, each one
+ * asks for incremental update of complete screen every 100 ms and discards
+ * what it receives. Platform thread count, heap after GC and resident memory
+ * are printed every few seconds.<BR>
+ * Usage: <I>LoadTest platform|virtual|nio [viewers] [seconds]</I>, or
+ * <I>gradle :desktop:loadTest -Pargs="virtual 500 30"</I>. Screen size is set with
+ * <I>-Dwidth</I> and <I>-Dheight</I>, encodings with <I>-Dencodings=16,1</I>.
+ */
+public class LoadTest {
+
+    private static final int WIDTH = Integer.getInteger("width", 1280);
+    private static final int HEIGHT = Integer.getInteger("height", 720);
+    private static final int PORT = Integer.getInteger("port", 5903);
+    private static final long REQUEST_INTERVAL = 100;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "platform";
+        int viewers = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int baseThreads = threads.getThreadCount();
+
+        SyntheticScreen screen = new SyntheticScreen(WIDTH, HEIGHT);
+        screen.start();
+        CaptureScheduler captureScheduler = new CaptureScheduler(screen);
+        captureScheduler.start();
+
+        startServer(mode, screen, captureScheduler);
+        Thread.sleep(500);
+
+        Viewers clients = new Viewers(viewers);
+        Thread clientThread = new Thread(clients, "Viewers");
+        clientThread.setDaemon(true);
+        clientThread.start();
+
+        /*
+         * Viewers and screen thread are part of test, not of server.
+         */
+        int ownThreads = 2;
+
+        System.out.println("mode=" + mode + " viewers=" + viewers + " screen=" + WIDTH + "x" + HEIGHT);
+        long start = System.currentTimeMillis();
+        int peakThreads = 0;
+        while (System.currentTimeMillis() - start < seconds * 1000L) {
+            Thread.sleep(1000);
+            int serverThreads = threads.getThreadCount() - baseThreads - ownThreads;
+            peakThreads = Math.max(peakThreads, serverThreads);
+            if ((System.currentTimeMillis() - start) / 1000 % 5 == 0) {
+                System.out.println(String.format("t=%3ds connected=%d threads=%d received=%d MB",
+                        (System.currentTimeMillis() - start) / 1000, clients.getConnected(),
+                        serverThreads, clients.getReceived() >> 20));
+            }
+        }
+
+        System.gc();
+        Thread.sleep(200);
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.println(String.format("result mode=%s viewers=%d connected=%d peakThreads=%d heapAfterGc=%d MB rss=%s received=%d MB",
+                mode, viewers, clients.getConnected(), peakThreads, heap >> 20, residentMemory(),
+                clients.getReceived() >> 20));
+        System.exit(0);
+    }
+
+    private static void startServer(String mode, NativeInterface nativeInterface, CaptureScheduler captureScheduler) throws IOException {
+        Thread server;
+        if ("nio".equals(mode)) {
+            server = new Thread(new NioServer(PORT, nativeInterface, captureScheduler), "NioServer");
+        } else {
+            ServerSocket serverSocket = new ServerSocket(PORT, 1024);
+            boolean virtual = "virtual".equals(mode);
+            server = new Thread(() -> {
+                try {
+                    DesktopStarter.serve(serverSocket, nativeInterface, captureScheduler, virtual);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "Acceptor");
+        }
+        server.setDaemon(true);
+        server.start();
+    }
+
+    /**
+     * @return resident memory of process, from /proc on Linux
+     */
+    private static String residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return line.substring(6).trim();
+                }
+            }
+        } catch (IOException e) {
+            /*
+             * Not available on this system.
+             */
+        }
+        return "n/a";
+    }
+
+    /**
+     * Screen with synthetic content. Window sized area changes every 100 ms,
+     * input events are ignored.
+     */
+    private static class SyntheticScreen implements NativeInterface, Runnable {
+
+        private final int width, height;
+        private volatile int[] pixels;
+
+        SyntheticScreen(int width, int height) {
+            this.width = width;
+            this.height = height;
+            int[] initial = new int[width * height];
+            for (int i = 0; i < initial.length; i++) {
+                initial[i] = (i % width) < width / 2 ? 0x336699 : 0xF0F0F0;
+            }
+            pixels = initial;
+        }
+
+        void start() {
+            Thread thread = new Thread(this, "SyntheticScreen");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            int frame = 0;
+            while (true) {
+                int[] next = pixels.clone();
+                int x0 = (frame * 37) % (width - 200), y0 = (frame * 23) % (height - 100);
+                for (int y = y0; y < y0 + 100; y++) {
+                    for (int x = x0; x < x0 + 200; x++) {
+                        next[y * width + x] = (x * y + frame) & 0xFFFFFF;
+                    }
+                }
+                pixels = next;
+                frame++;
+                try {
+                    Thread.sleep(REQUEST_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public int[] getImageBuffer(int x, int y, int w, int h) {
+            return pixels.clone();
+        }
+
+        @Override
+        public int getScreenWidth() {
+            return width;
+        }
+
+        @Override
+        public int getScreenHeight() {
+            return height;
+        }
+
+        /**
+         * Synthetic pixels are 32-bit, there is no display to ask.
+         */
+        @Override
+        public int getPixelSize() {
+            return 32;
+        }
+
+        @Override
+        public void keyDown(int keyCode, boolean keyDown) {
+        }
+
+        @Override
+        public void mouseMove(int x, int y) {
+        }
+
+        @Override
+        public void mouseButton(int buttonCode, boolean buttonDown, int x, int y) {
+        }
+
+        @Override
+        public void mouseWheel(boolean direction) {
+        }
+    }
+
+    /**
+     * Simulated viewers on one selector thread.
+     */
+    private static class Viewers implements Runnable {
+
+        private final int count;
+        private final List<SocketChannel> channels = new ArrayList<>();
+        private volatile int connected;
+        private volatile long received;
+
+        Viewers(int count) {
+            this.count = count;
+        }
+
+        int getConnected() {
+            return connected;
+        }
+
+        long getReceived() {
+            return received;
+        }
+
+        @Override
+        public void run() {
+            try (Selector selector = Selector.open()) {
+                ByteBuffer handshake = handshake();
+                for (int i = 0; i < count; i++) {
+                    SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+                    channel.socket().setTcpNoDelay(true);
+                    channel.write(handshake.duplicate());
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ);
+                    channels.add(channel);
+                    connected = channels.size();
+                }
+
+                ByteBuffer request = ByteBuffer.allocate(10);
+                request.put((byte) 3).put((byte) 1).putShort((short) 0).putShort((short) 0)
+                        .putShort((short) WIDTH).putShort((short) HEIGHT).flip();
+                ByteBuffer input = ByteBuffer.allocateDirect(1 << 20);
+
+                long nextRequest = 0;
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    if (now >= nextRequest) {
+                        for (SocketChannel channel : channels) {
+                            try {
+                                channel.write(request.duplicate());
+                            } catch (IOException e) {
+                                /*
+                                 * Closed channel is removed when it is read.
+                                 */
+                            }
+                        }
+                        nextRequest = now + REQUEST_INTERVAL;
+                    }
+
+                    selector.select(Math.max(1, nextRequest - now));
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        int n;
+                        try {
+                            while ((n = channel.read(input)) > 0) {
+                                received += n;
+                                input.clear();
+                            }
+                        } catch (IOException e) {
+                            n = -1;
+                        }
+                        if (n < 0) {
+                            key.cancel();
+                            channel.close();
+                            channels.remove(channel);
+                            connected = channels.size();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Protocol version, shared flag, and SetEncodings, sent before server asks for them.
+         */
+        private static ByteBuffer handshake() {
+            String[] encodings = System.getProperty("encodings", "16").split(",");
+            ByteBuffer buffer = ByteBuffer.allocate(17 + 4 * encodings.length);
+            buffer.put("RFB 003.003\n".getBytes());
+            buffer.put((byte) 1);
+            buffer.put((byte) 2).put((byte) 0).putShort((short) encodings.length);
+            for (String encoding : encodings) {
+                buffer.putInt(Integer.parseInt(encoding.trim()));
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
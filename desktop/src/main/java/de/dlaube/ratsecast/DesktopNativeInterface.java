@@ -1,6 +1,7 @@
 package de.dlaube.ratsecast;
 
 import java.awt.*;
+import java.awt.event.InputEvent;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 
@@ -31,16 +32,28 @@ public class DesktopNativeInterface implements NativeInterface{
 
     @Override
     public void mouseButton(int buttonCode, boolean buttonDown, int x, int y) {
+        /*
+         * Button code 0 is left, 1 right and 2 middle button,
+         * AWT numbers them 1, 3 and 2.
+         */
+        int buttons;
+        if (buttonCode == 1)
+            buttons = InputEvent.getMaskForButton(3);
+        else if (buttonCode == 2)
+            buttons = InputEvent.getMaskForButton(2);
+        else
+            buttons = InputEvent.getMaskForButton(1);
+
         robot.mouseMove(x, y);
         if(buttonDown)
-            robot.mousePress(buttonCode);
+            robot.mousePress(buttons);
         else
-            robot.mouseRelease(buttonCode);
+            robot.mouseRelease(buttons);
     }
 
     @Override
     public void mouseWheel(boolean direction) {
-        robot.mouseWheel(direction ? 100 : -100);
+        robot.mouseWheel(direction ? 1 : -1);
     }
 
     @Override
@@ -9,25 +9,73 @@ public class DesktopStarter {
     public static void main(String[] args) throws IOException {
         DesktopNativeInterface desktopNativeInterface = new DesktopNativeInterface();
 
+        /*
+         * Screen is captured once for all clients.
+         */
+        CaptureScheduler captureScheduler = new CaptureScheduler(desktopNativeInterface);
+        captureScheduler.start();
+
+        /*
+         * Input events of all clients are injected in order on one thread,
+         * so slow Robot calls do not hold up reading of client sockets.
+         */
+        InputDispatcher inputDispatcher = new InputDispatcher(desktopNativeInterface);
+        inputDispatcher.start();
+
         int port = 5902;
+
+        String mode = args.length > 0 ? args[0] : "";
+
+        /*
+         * With argument "nio" all clients are served from single thread.
+         */
+        if ("nio".equals(mode)) {
+            new NioServer(port, inputDispatcher, captureScheduler).run();
+            return;
+        }
+
+        /*
+         * With argument "virtual" each client is served by its own virtual thread.
+         */
+        boolean virtual = "virtual".equals(mode);
+
         ServerSocket serverSocket;
         serverSocket = new ServerSocket(port);
-        
+
+        serve(serverSocket, inputDispatcher, captureScheduler, virtual);
+    }
+
+    /**
+     * Accept clients and serve each one with its own thread.
+     *
+     * @param serverSocket socket where clients connect
+     * @param nativeInterface interface for input events and screen capture
+     * @param captureScheduler scheduler that captures screen for all sessions
+     * @param virtual true if sessions run on virtual threads
+     * @throws IOException
+     */
+    public static void serve(ServerSocket serverSocket, NativeInterface nativeInterface,
+            CaptureScheduler captureScheduler, boolean virtual) throws IOException {
         while(true){
             /*
              * Wait and accept new client.
              */
-            
+
             Socket client = serverSocket.accept();
-            
+
             /*
              * Create new object for each client.
              */
-            RFBService rfbService = new RFBService(client, desktopNativeInterface);
+            RFBService rfbService = new RFBService(client, nativeInterface, captureScheduler);
             /*
              * Handle new client session in separate thread.
              */
-            (new Thread(rfbService, "RFBService")).start();
+            if (virtual) {
+                rfbService.setWriterThreadFactory(Thread.ofVirtual().name("RFBService writer").factory());
+                Thread.ofVirtual().name("RFBService").start(rfbService);
+            } else {
+                (new Thread(rfbService, "RFBService")).start();
+            }
 
         }
     }
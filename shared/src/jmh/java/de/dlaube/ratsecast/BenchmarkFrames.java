@@ -0,0 +1,68 @@
+package de.dlaube.ratsecast;
+
+import java.util.Random;
+
+/**
+ * Synthetic screen content for benchmarks: desktop background, window
+ * frames with title bars, and lines of text-like glyph runs.
+ */
+public class BenchmarkFrames {
+
+	private BenchmarkFrames() {
+	}
+
+	/**
+	 * @param width frame width
+	 * @param height frame height
+	 * @param seed seed of random content
+	 * @return frame in <I>0x00RRGGBB</I> form
+	 */
+	public static int[] desktop(int width, int height, long seed) {
+		Random random = new Random(seed);
+		int[] frame = new int[width * height];
+
+		for (int y = 0; y < height; y++) {
+			int background = 0x204060 + (y * 32 / height);
+			for (int x = 0; x < width; x++) {
+				frame[y * width + x] = background;
+			}
+		}
+
+		int windows = 3 + width / 800;
+		for (int w = 0; w < windows; w++) {
+			int ww = width / 4 + random.nextInt(width / 3);
+			int wh = height / 4 + random.nextInt(height / 3);
+			int wx = random.nextInt(width - ww);
+			int wy = random.nextInt(height - wh);
+			fill(frame, width, wx, wy, ww, wh, 0xF0F0F0);
+			fill(frame, width, wx, wy, ww, 24, 0x3070C0);
+
+			/*
+			 * Text lines, glyph runs of dark pixels with gaps.
+			 */
+			for (int line = wy + 32; line + 12 < wy + wh; line += 18) {
+				int x = wx + 8;
+				while (x < wx + ww - 16) {
+					int word = 8 + random.nextInt(48);
+					for (int gy = line; gy < line + 12; gy++) {
+						for (int gx = x; gx < Math.min(x + word, wx + ww - 8); gx++) {
+							if (random.nextInt(3) == 0) {
+								frame[gy * width + gx] = 0x202020;
+							}
+						}
+					}
+					x += word + 6;
+				}
+			}
+		}
+		return frame;
+	}
+
+	private static void fill(int[] frame, int width, int x, int y, int w, int h, int color) {
+		for (int row = y; row < y + h; row++) {
+			for (int col = x; col < x + w; col++) {
+				frame[row * width + col] = color;
+			}
+		}
+	}
+}
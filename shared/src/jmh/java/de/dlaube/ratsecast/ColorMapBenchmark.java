@@ -0,0 +1,108 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Color;
+import java.awt.image.DirectColorModel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares 8-bit conversion of one 1920x1080 frame with per-component tables of
+ * {@link ColorMap8bit} against original conversion, which scanned all 256 palette
+ * entries for every pixel.<BR>
+ * Run with: <I>gradle :shared:jmh -Pjmh.args=ColorMapBenchmark</I>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorMapBenchmark {
+
+	private static final int WIDTH = 1920;
+	private static final int HEIGHT = 1080;
+
+	private int[] frame;
+	private byte[] buffer;
+
+	private ScanColorMap scanColorMap;
+	private PixelTranslator8 translator;
+
+	@Setup
+	public void setUp() {
+		frame = BenchmarkFrames.desktop(WIDTH, HEIGHT, 1);
+		buffer = new byte[WIDTH * HEIGHT];
+
+		scanColorMap = new ScanColorMap();
+		/*
+		 * BGR233, same palette as original color map.
+		 */
+		translator = new PixelTranslator8(new PixelFormat(8, 8, false, true, 7, 7, 3, 0, 3, 6));
+	}
+
+	@Benchmark
+	public void scan(Blackhole blackhole) {
+		for (int i = 0; i < frame.length; i++) {
+			int rgbValue = frame[i];
+			buffer[i] = (byte) scanColorMap.get8bitPixelValue((rgbValue >> 16) & 0xFF, (rgbValue >> 8) & 0xFF, rgbValue & 0xFF);
+		}
+		blackhole.consume(buffer);
+	}
+
+	@Benchmark
+	public void table(Blackhole blackhole) {
+		blackhole.consume(translator.translate(frame, 0, WIDTH, WIDTH, HEIGHT, buffer, 0));
+	}
+
+	/**
+	 * Color map as it was before lookup tables: distance of each
+	 * pixel is compared with distance of all 256 palette entries.
+	 */
+	private static final class ScanColorMap {
+
+		private final double[] colorDistance = new double[256];
+
+		ScanColorMap() {
+			DirectColorModel cm8 = new DirectColorModel(8, 7, (7 << 3), (3 << 6));
+			for (int i = 0; i < 256; i++) {
+				Color color = new Color(cm8.getRGB(i));
+				colorDistance[i] = distance(color.getRed(), color.getGreen(), color.getBlue());
+			}
+		}
+
+		int get8bitPixelValue(int red, int green, int blue) {
+			int retVal = 0;
+
+			double distance = distance(red, green, blue);
+			double delta = Double.MAX_VALUE;
+
+			for (int i = 0; i < colorDistance.length; i++) {
+				double current = Math.abs(distance - colorDistance[i]);
+				if (current < delta) {
+					retVal = i;
+					delta = current;
+				}
+			}
+
+			return retVal;
+		}
+
+		private static double distance(int red, int green, int blue) {
+			if (red == 0 && green == 0 && blue == 0) {
+				return 0;
+			}
+			return Math.sqrt(red * red + green * green + blue * blue);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encodes one 1920x1080 desktop frame (windows, title bars, text) as 64x64 tiles,
+ * same as changed tiles are sent in incremental update. Encoders without compression
+ * are compared, so time is spent in encoder alone. Divide time of operation by
+ * 2073600 pixels for ns per pixel. Encoded size of frame is printed at setup.<BR>
+ * Run with: <I>gradle :shared:jmh -Pjmh.args=EncoderBenchmark</I>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+
+	private static final int WIDTH = 1920;
+	private static final int HEIGHT = 1080;
+	private static final int TILE_SIZE = DamageTracker.DEFAULT_TILE_SIZE;
+
+	@Param({"raw", "rre", "corre", "hextile", "trle"})
+	private String encoding;
+
+	private int[] frame;
+	private Encoder encoder;
+	private final PixelTranslator pixelTranslator = new PixelTranslator32(
+			new PixelFormat(32, 24, false, true, 255, 255, 255, 16, 8, 0));
+	private final MessageBuffer message = new MessageBuffer(WIDTH * HEIGHT * 4);
+	private final List<Rectangle> tiles = new ArrayList<Rectangle>();
+
+	@Setup
+	public void setUp() throws IOException {
+		frame = BenchmarkFrames.desktop(WIDTH, HEIGHT, 1);
+
+		switch (encoding) {
+		case "rre":
+			encoder = new RreEncoder();
+			break;
+		case "corre":
+			encoder = new CorreEncoder();
+			break;
+		case "hextile":
+			encoder = new HextileEncoder();
+			break;
+		case "trle":
+			encoder = new TrleEncoder();
+			break;
+		default:
+			encoder = new RawEncoder();
+		}
+
+		for (int y = 0; y < HEIGHT; y += TILE_SIZE) {
+			for (int x = 0; x < WIDTH; x += TILE_SIZE) {
+				encoder.split(new Rectangle(x, y, Math.min(TILE_SIZE, WIDTH - x), Math.min(TILE_SIZE, HEIGHT - y)), tiles);
+			}
+		}
+
+		encodeFrame();
+		System.out.println(encoding + ": " + message.size() + " bytes per frame, "
+				+ String.format("%.3f", (double) message.size() / (WIDTH * HEIGHT)) + " bytes per pixel");
+	}
+
+	@Benchmark
+	public void encode(Blackhole blackhole) throws IOException {
+		encodeFrame();
+		blackhole.consume(message.size());
+	}
+
+	private void encodeFrame() throws IOException {
+		message.reset();
+		for (Rectangle tile : tiles) {
+			encoder.encode(frame, WIDTH, tile, pixelTranslator, message);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares {@link FrameDiff} row comparison with {@link java.util.Arrays#mismatch(int[], int, int, int[], int, int)}
+ * against plain loop, selected with <I>ratsecast.scalarDiff=true</I>.<BR>
+ * Complete frame is compared, every tile is candidate. Frames differ only in
+ * one window sized area and few single pixels, so most rows are compared to their end.
+ * Run with: <I>gradle :shared:jmh -Pjmh.args=FrameDiffBenchmark</I>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDiffBenchmark {
+
+	private static final int TILE_SIZE = DamageTracker.DEFAULT_TILE_SIZE;
+
+	@Param({"1920x1080", "2560x1440", "3840x2160"})
+	private String resolution;
+
+	private int width, height;
+	private int[] previous, current;
+	private final BitSet dirtyTiles = new BitSet();
+
+	@Setup
+	public void setUp() {
+		String[] size = resolution.split("x");
+		width = Integer.parseInt(size[0]);
+		height = Integer.parseInt(size[1]);
+
+		previous = BenchmarkFrames.desktop(width, height, 1);
+		current = previous.clone();
+
+		Random random = new Random(2);
+		int windowX = width / 3, windowY = height / 4;
+		for (int y = windowY; y < windowY + 300; y++) {
+			for (int x = windowX; x < windowX + 400; x++) {
+				current[y * width + x] = random.nextInt(0xFFFFFF);
+			}
+		}
+		for (int i = 0; i < 16; i++) {
+			current[random.nextInt(current.length)] ^= 0x010101;
+		}
+	}
+
+	@Benchmark
+	public void mismatch(Blackhole blackhole) {
+		diffFrame(blackhole);
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Dratsecast.scalarDiff=true")
+	public void scalar(Blackhole blackhole) {
+		diffFrame(blackhole);
+	}
+
+	private void diffFrame(Blackhole blackhole) {
+		int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		for (int y = 0; y < height; y += TILE_SIZE) {
+			dirtyTiles.set(0, tilesX);
+			Rectangle bounds = FrameDiff.diffBand(previous, current, width, y, Math.min(TILE_SIZE, height - y), TILE_SIZE, dirtyTiles);
+			blackhole.consume(bounds);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package de.dlaube.ratsecast;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding of client messages that arrive most often: <I>PointerEvent</I>,
+ * <I>KeyEvent</I> and <I>FramebufferUpdateRequest</I>. Each operation decodes
+ * one message from session input stream. Input events go either directly to
+ * interface that ignores them, or through {@link InputDispatcher}, as in server.<BR>
+ * Decoding should not allocate, run with GC profiler to see allocation rate:
+ * <I>gradle :shared:jmh -Pjmh.args="MessageDecodeBenchmark -prof gc"</I>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDecodeBenchmark {
+
+	private static final int WIDTH = 1920;
+	private static final int HEIGHT = 1080;
+
+	@Param({"direct", "dispatcher"})
+	private String input;
+
+	private MessageStream in;
+	private RFBService service;
+
+	private final byte[][] pointerEvents = new byte[2][];
+	private final byte[][] keyEvents = new byte[2][];
+	private final byte[][] updateRequests = new byte[2][];
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException {
+		in = new MessageStream();
+		NativeInterface nativeInterface = new IdleScreen();
+		if ("dispatcher".equals(input)) {
+			InputDispatcher inputDispatcher = new InputDispatcher(nativeInterface);
+			inputDispatcher.start();
+			nativeInterface = inputDispatcher;
+		}
+		service = new RFBService(in, OutputStream.nullOutputStream(), nativeInterface, null);
+
+		/*
+		 * Handshake: protocol version and shared flag.
+		 */
+		service.open();
+		in.setMessage("RFB 003.003\n".getBytes());
+		service.processInput();
+		in.setMessage(new byte[] { 1 });
+		service.processInput();
+
+		/*
+		 * Pointer moves between two positions, key is pressed and released,
+		 * so each message has effect.
+		 */
+		pointerEvents[0] = new byte[] { 5, 0, 0, 100, 0, 100 };
+		pointerEvents[1] = new byte[] { 5, 0, 0, 101, 0, 102 };
+		keyEvents[0] = new byte[] { 4, 1, 0, 0, 0, 0, (byte) 0xFF, 0x0D };
+		keyEvents[1] = new byte[] { 4, 0, 0, 0, 0, 0, (byte) 0xFF, 0x0D };
+		updateRequests[0] = new byte[] { 3, 1, 0, 0, 0, 0, (byte) (WIDTH >> 8), (byte) WIDTH, (byte) (HEIGHT >> 8), (byte) HEIGHT };
+		updateRequests[1] = new byte[] { 3, 1, 0, 0, 0, 0, (byte) (WIDTH >> 9), (byte) (WIDTH >> 1), (byte) (HEIGHT >> 9), (byte) (HEIGHT >> 1) };
+	}
+
+	@Benchmark
+	public void pointerEvent(Blackhole blackhole) throws IOException {
+		decode(pointerEvents, blackhole);
+	}
+
+	@Benchmark
+	public void keyEvent(Blackhole blackhole) throws IOException {
+		decode(keyEvents, blackhole);
+	}
+
+	@Benchmark
+	public void frameBufferUpdateRequest(Blackhole blackhole) throws IOException {
+		decode(updateRequests, blackhole);
+	}
+
+	private void decode(byte[][] messages, Blackhole blackhole) throws IOException {
+		next ^= 1;
+		in.setMessage(messages[next]);
+		service.processInput();
+		blackhole.consume(service);
+	}
+
+	/**
+	 * Input stream that is refilled with one message before each decode.
+	 */
+	private static final class MessageStream extends ByteArrayInputStream {
+
+		MessageStream() {
+			super(new byte[0]);
+		}
+
+		void setMessage(byte[] message) {
+			buf = message;
+			pos = 0;
+			mark = 0;
+			count = message.length;
+		}
+	}
+
+	/**
+	 * Screen of fixed size that ignores input events.
+	 */
+	private static final class IdleScreen implements NativeInterface {
+
+		@Override
+		public int[] getImageBuffer(int x, int y, int width, int height) {
+			return new int[width * height];
+		}
+
+		@Override
+		public int getScreenWidth() {
+			return WIDTH;
+		}
+
+		@Override
+		public int getScreenHeight() {
+			return HEIGHT;
+		}
+
+		@Override
+		public int getPixelSize() {
+			return 32;
+		}
+
+		@Override
+		public void keyDown(int keyCode, boolean keyDown) {
+		}
+
+		@Override
+		public void mouseMove(int x, int y) {
+		}
+
+		@Override
+		public void mouseButton(int buttonCode, boolean buttonDown, int x, int y) {
+		}
+
+		@Override
+		public void mouseWheel(boolean direction) {
+		}
+	}
+}
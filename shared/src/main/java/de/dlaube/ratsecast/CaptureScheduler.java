@@ -0,0 +1,267 @@
+package de.dlaube.ratsecast;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Captures screen for all client sessions, at rate adapted to demand and screen changes.<BR>
+ * Without scheduler, each session captures complete screen on its own, so
+ * with N connected viewers screen is captured N times per refresh. Scheduler
+ * runs single capture thread that publishes each frame as {@link ScreenFrame}
+ * with sequence number. Sessions take latest frame with {@link #getLatestFrame()},
+ * or wait for a newer one with {@link #awaitFrame(long, long)}.<BR>
+ * Captured frame that is same as current one is not published, so sequence number
+ * changes only when screen changes. Frames are compared on capture thread without
+ * holding lock, so sessions do not wait for comparison.<BR>
+ * Scheduler also owns {@link EncodedTileCache} of its frames. Entries of frames
+ * older than one before current are removed when new frame is published.<BR>
+ * Screen is captured only while some session asks for new frame, see {@link #requestFrame()},
+ * so idle server with no pending update requests does not capture at all. While frames
+ * change, screen is captured at most max FPS times per second. Each capture that finds
+ * screen unchanged doubles time to next capture, up to {@link #IDLE_INTERVAL}, and key
+ * or button event from client brings rate back to max FPS, see {@link #expectChange()}.<BR>
+ * Frames are guarded by {@link ReentrantLock} rather than monitor, so session
+ * on virtual thread that waits for frame does not pin its carrier thread.
+ */
+public class CaptureScheduler implements Runnable {
+
+	public static final int DEFAULT_MAX_FPS = 20;
+
+	/**
+	 * Longest time between two captures while frame is requested, in milliseconds.
+	 */
+	public static final long IDLE_INTERVAL = 1000;
+
+	private final NativeInterface nativeInterface;
+	private final long minInterval;
+	private final EncodedTileCache encodedTileCache = new EncodedTileCache();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition published = lock.newCondition();
+	private final Condition requested = lock.newCondition();
+
+	/**
+	 * Current time between two captures, in milliseconds.
+	 */
+	private long interval;
+	private boolean frameRequested;
+	private boolean changeExpected;
+
+	private ScreenFrame current;
+	private long sequence;
+
+	private Thread thread;
+	private volatile boolean running;
+
+	public CaptureScheduler(NativeInterface nativeInterface) {
+		this(nativeInterface, DEFAULT_MAX_FPS);
+	}
+
+	/**
+	 * @param nativeInterface interface used to capture screen
+	 * @param maxFps largest number of captures per second
+	 */
+	public CaptureScheduler(NativeInterface nativeInterface, int maxFps) {
+		this.nativeInterface = nativeInterface;
+		this.minInterval = Math.max(1, 1000 / maxFps);
+		this.interval = minInterval;
+	}
+
+	/**
+	 * Start capture thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "CaptureScheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop capture thread.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				awaitRequest();
+
+				ScreenFrame latest = getCurrentFrame();
+				boolean changed = capture() != latest;
+				pause(changed);
+			} catch (InterruptedException e) {
+				break;
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Wait until some session asks for new frame.
+	 *
+	 * @throws InterruptedException
+	 */
+	private void awaitRequest() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!frameRequested) {
+				requested.await();
+			}
+			frameRequested = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adapt capture interval and wait for it. Wait ends early when
+	 * change is expected.
+	 *
+	 * @param changed true if last capture found screen changed
+	 * @throws InterruptedException
+	 */
+	private void pause(boolean changed) throws InterruptedException {
+		lock.lock();
+		try {
+			if (changed || changeExpected) {
+				interval = minInterval;
+			}
+			else {
+				interval = Math.min(IDLE_INTERVAL, interval * 2);
+			}
+			changeExpected = false;
+
+			long remaining = TimeUnit.MILLISECONDS.toNanos(interval);
+			while (remaining > 0 && !changeExpected) {
+				remaining = requested.awaitNanos(remaining);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Ask for new frame. Session calls this while it has update request
+	 * that latest frame does not answer.
+	 */
+	public void requestFrame() {
+		lock.lock();
+		try {
+			frameRequested = true;
+			requested.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Tell scheduler that screen is likely to change soon, for example
+	 * because client sent input event. Capture rate goes back to max FPS.
+	 */
+	public void expectChange() {
+		lock.lock();
+		try {
+			changeExpected = true;
+			requested.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ScreenFrame getCurrentFrame() {
+		lock.lock();
+		try {
+			return current;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Capture screen and publish frame, if screen changed since last capture.
+	 * Only capture thread publishes frames, so current frame is compared
+	 * without holding lock.
+	 *
+	 * @return latest frame
+	 */
+	private ScreenFrame capture() {
+		int width = nativeInterface.getScreenWidth();
+		int height = nativeInterface.getScreenHeight();
+		int[] pixels = nativeInterface.getImageBuffer(0, 0, width, height);
+
+		ScreenFrame latest = getCurrentFrame();
+		if (latest != null && latest.getWidth() == width && latest.getHeight() == height
+				&& Arrays.equals(latest.getPixels(), pixels)) {
+			return latest;
+		}
+
+		ScreenFrame frame = new ScreenFrame(++sequence, pixels, width, height);
+		lock.lock();
+		try {
+			current = frame;
+			published.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		encodedTileCache.evictBefore(frame.getSequence() - 1);
+		return frame;
+	}
+
+	/**
+	 * @return cache of encoded rectangles of frames published by this scheduler
+	 */
+	public EncodedTileCache getEncodedTileCache() {
+		return encodedTileCache;
+	}
+
+	/**
+	 * Screen is not captured here, so caller on selector thread never waits
+	 * for capture. Caller asks for frame with {@link #requestFrame()} when
+	 * there is none yet.
+	 *
+	 * @return latest frame, or null if no frame was captured yet
+	 */
+	public ScreenFrame getLatestFrame() {
+		lock.lock();
+		try {
+			return current;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until frame newer than given sequence number is published.
+	 *
+	 * @param sequence sequence number of frame that caller already has
+	 * @param timeout longest time to wait, in milliseconds
+	 * @return latest frame, may be same as one caller has if timeout passed
+	 * @throws InterruptedException
+	 */
+	public ScreenFrame awaitFrame(long sequence, long timeout) throws InterruptedException {
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lock();
+		try {
+			while ((current == null || current.getSequence() <= sequence) && remaining > 0) {
+				remaining = published.awaitNanos(remaining);
+			}
+			return current;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -1,22 +1,26 @@
 package de.dlaube.ratsecast;
 
-import java.awt.Color;
-import java.awt.image.DirectColorModel;
-
 /**
  * This class provide closest match for RGB pixel value in 8-bit palette range.
- * Suitable for RFB protocol.
- * 
+ * Suitable for RFB protocol.<BR>
+ * Palette layout follows pixel format that client negotiated with
+ * <I>SetPixelFormat</I> message: maximum value and shift of each color component.
+ * Since palette is a regular grid in RGB space, closest palette color is found by
+ * rounding each component to nearest level. Lookup tables for each component are
+ * built once, so conversion of a pixel is three array loads.
+ *
  * @author igor.delac@gmail.com
  *
  */
 public class ColorMap8bit {
 
-	private Color[] colors;
-	private double[] colorDistance;
-	
-	private DirectColorModel cm8;
-	
+	private final int redMax, greenMax, blueMax;
+	private final int redShift, greenShift, blueShift;
+
+	private final int[] redTable;
+	private final int[] greenTable;
+	private final int[] blueTable;
+
 	/**
 	 * Instance of color map with following masks:<BR>
 	 * <UL>
@@ -24,57 +28,77 @@ public class ColorMap8bit {
 	 * <LI>Green color mask: 0x00111000</LI>
 	 * <LI>Blue  color mask: 0x11000000</LI>
 	 * </UL>
+	 * This is also a palette which is sent to clients that do not use true color mode.
 	 */
 	public ColorMap8bit() {
+		this(7, 7, 3, 0, 3, 6);
+	}
 
-		cm8 = new DirectColorModel(8, 7, (7 << 3), (3 << 6));
-
-		colors = new Color[256];
-		colorDistance = new double[256];
-		
-		for (int i = 0; i < 256; i++) {
-			int rgbValue = cm8.getRGB(i);
-			colors[i] = new Color(rgbValue);
-			colorDistance[i] = distance(colors[i]); 
-		}
+	/**
+	 * Instance of color map for pixel format negotiated with client.
+	 *
+	 * @param redMax maximum red value
+	 * @param greenMax maximum green value
+	 * @param blueMax maximum blue value
+	 * @param redShift bit position of red value
+	 * @param greenShift bit position of green value
+	 * @param blueShift bit position of blue value
+	 */
+	public ColorMap8bit(int redMax, int greenMax, int blueMax, int redShift, int greenShift, int blueShift) {
+		this.redMax = redMax;
+		this.greenMax = greenMax;
+		this.blueMax = blueMax;
+		this.redShift = redShift;
+		this.greenShift = greenShift;
+		this.blueShift = blueShift;
 
+		redTable = PixelFormat.componentTable(redMax, redShift);
+		greenTable = PixelFormat.componentTable(greenMax, greenShift);
+		blueTable = PixelFormat.componentTable(blueMax, blueShift);
 	}
-	
+
 	/**
 	 * Return closest 8-bit pixel value for RGB pixel.
-	 * A distance is calculated as:<BR>
-	 *  <PRE>sqrt(red^2 + green^2 + blue^2)</PRE>
-	 * 
+	 * Each component is rounded to nearest level that fits into
+	 * component maximum value.
+	 *
 	 * @param red red component
 	 * @param green green component
 	 * @param blue blue component
 	 * @return pixel value
 	 */
 	public int get8bitPixelValue(int red, int green, int blue) {
-		int retVal = 0;
-		
-		double distance = distance(red, green, blue);
-		double delta = Double.MAX_VALUE;
-		
-		for (int i = 0; i < colors.length; i++) {
-			double current = Math.abs(distance - colorDistance[i]); 
-			if (current < delta) {
-				retVal = i;
-				delta = current;
-			}
-		}
-		
-		return retVal;
+		return (redTable[red & 0xFF] | greenTable[green & 0xFF] | blueTable[blue & 0xFF]) & 0xFF;
 	}
-	
-	private double distance(Color rgb) {
-		return distance (rgb.getRed(), rgb.getGreen(), rgb.getBlue());
+
+	/**
+	 * Return closest 8-bit pixel value for RGB pixel.
+	 *
+	 * @param rgbValue pixel in <I>0x00RRGGBB</I> form
+	 * @return pixel value
+	 */
+	public int get8bitPixelValue(int rgbValue) {
+		return (redTable[(rgbValue >> 16) & 0xFF] | greenTable[(rgbValue >> 8) & 0xFF] | blueTable[rgbValue & 0xFF]) & 0xFF;
 	}
-	
-	private double distance(int red, int green, int blue) {
-		if (red == 0 && green == 0 && blue == 0) {
+
+	/**
+	 * Return RGB color for 8-bit pixel value.
+	 * Used to fill color map entries for clients that do not use true color mode.
+	 *
+	 * @param pixelValue 8-bit pixel value
+	 * @return color in <I>0x00RRGGBB</I> form
+	 */
+	public int getRGB(int pixelValue) {
+		int red   = scale((pixelValue >> redShift) & redMax, redMax);
+		int green = scale((pixelValue >> greenShift) & greenMax, greenMax);
+		int blue  = scale((pixelValue >> blueShift) & blueMax, blueMax);
+		return (red << 16) | (green << 8) | blue;
+	}
+
+	private static int scale(int level, int max) {
+		if (max == 0) {
 			return 0;
 		}
-		return Math.sqrt(red * red + green * green + blue * blue);
+		return (level * 255 + max / 2) / max;
 	}
 }
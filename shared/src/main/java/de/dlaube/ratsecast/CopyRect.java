@@ -0,0 +1,48 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+
+/**
+ * Rectangle that client can copy from another part of its own frame buffer,
+ * sent with RFB <I>CopyRect</I> encoding (encoding type 1).
+ */
+public class CopyRect {
+
+	private final Rectangle destination;
+	private final int srcX, srcY;
+
+	/**
+	 * @param destination area that is overwritten
+	 * @param srcX left edge of source area
+	 * @param srcY top edge of source area
+	 */
+	public CopyRect(Rectangle destination, int srcX, int srcY) {
+		this.destination = destination;
+		this.srcX = srcX;
+		this.srcY = srcY;
+	}
+
+	public Rectangle getDestination() {
+		return destination;
+	}
+
+	public int getSrcX() {
+		return srcX;
+	}
+
+	public int getSrcY() {
+		return srcY;
+	}
+
+	/**
+	 * @return area that is copied
+	 */
+	public Rectangle getSource() {
+		return new Rectangle(srcX, srcY, destination.width, destination.height);
+	}
+
+	@Override
+	public String toString() {
+		return "(" + srcX + ", " + srcY + ") -> " + destination;
+	}
+}
@@ -0,0 +1,34 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * CoRRE encoding (encoding type 4).<BR>
+ * Same as RRE, but position and size of subrectangles take one byte each,
+ * so rectangles are split into parts of at most 255x255 pixels.
+ */
+public class CorreEncoder extends RreEncoder {
+
+	private static final int MAX_SIZE = 255;
+
+	@Override
+	public int getEncodingType() {
+		return 4;
+	}
+
+	@Override
+	public void split(Rectangle rect, List<Rectangle> rectangles) {
+		for (int y = rect.y; y < rect.y + rect.height; y += MAX_SIZE) {
+			int height = Math.min(MAX_SIZE, rect.y + rect.height - y);
+			for (int x = rect.x; x < rect.x + rect.width; x += MAX_SIZE) {
+				rectangles.add(new Rectangle(x, y, Math.min(MAX_SIZE, rect.x + rect.width - x), height));
+			}
+		}
+	}
+
+	@Override
+	protected int getCoordinateSize() {
+		return 1;
+	}
+}
@@ -0,0 +1,192 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Tracks which parts of screen changed since last frame that was sent to client.<BR>
+ * Screen is divided into square tiles (64x64 pixels by default). Each captured
+ * frame is compared with previous one tile by tile and changed tiles are
+ * returned as rectangles, so incremental frame buffer updates carry only
+ * changed parts of screen.<BR>
+ * Tiles are first compared by their {@link TileHashes}, pixels are compared with
+ * {@link FrameDiff} only in tiles whose hash changed, to find bounding box of change.
+ * Tracker keeps reference to previous frame instead of copy, so frame arrays must
+ * not be modified once they are passed to {@link #update(int[], int, int)}.
+ */
+public class DamageTracker {
+
+	public static final int DEFAULT_TILE_SIZE = 64;
+
+	private final int tileSize;
+
+	private int width, height;
+	private int[] previous;
+	private TileHashes previousHashes;
+
+	private final BitSet dirtyTiles = new BitSet();
+	private Rectangle dirtyBounds;
+
+	public DamageTracker() {
+		this(DEFAULT_TILE_SIZE);
+	}
+
+	/**
+	 * @param tileSize width and height of tile in pixels
+	 */
+	public DamageTracker(int tileSize) {
+		if (tileSize <= 0) {
+			throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+		}
+		this.tileSize = tileSize;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Compare frame with previous one and remember it for next comparison.
+	 * If there is no previous frame, or screen size changed, complete
+	 * screen is reported as changed.<BR>
+	 * Changed tiles that are next to each other in same tile row are merged
+	 * into one rectangle, and rectangles with same horizontal span in
+	 * consecutive tile rows are merged too.
+	 *
+	 * @param frame screen pixels
+	 * @param width screen width
+	 * @param height screen height
+	 * @return list of changed rectangles, empty if nothing changed
+	 */
+	public List<Rectangle> update(int[] frame, int width, int height) {
+		return update(frame, width, height, TileHashes.compute(frame, width, height, tileSize));
+	}
+
+	/**
+	 * Same as {@link #update(int[], int, int)}, for frame whose tile hashes
+	 * are already computed.
+	 *
+	 * @param frame screen pixels
+	 * @param width screen width
+	 * @param height screen height
+	 * @param hashes tile hashes of frame, computed with tile size of this tracker
+	 * @return list of changed rectangles, empty if nothing changed
+	 */
+	public List<Rectangle> update(int[] frame, int width, int height, TileHashes hashes) {
+		List<Rectangle> damage = new ArrayList<Rectangle>();
+		dirtyBounds = null;
+
+		if (previous == null || !hashes.isCompatible(previousHashes)) {
+			damage.add(new Rectangle(0, 0, width, height));
+			dirtyBounds = new Rectangle(0, 0, width, height);
+		}
+		else {
+			List<Rectangle> previousRow = new ArrayList<Rectangle>();
+			List<Rectangle> currentRow = new ArrayList<Rectangle>();
+
+			for (int tileY = 0; tileY < height; tileY += tileSize) {
+				int tileHeight = Math.min(tileSize, height - tileY);
+
+				/*
+				 * Tiles with changed hash are candidates, pixels of other
+				 * tiles are not compared at all.
+				 */
+				dirtyTiles.clear();
+				int tileRow = tileY / tileSize;
+				for (int t = 0; t < hashes.getTilesX(); t++) {
+					if (hashes.get(t, tileRow) != previousHashes.get(t, tileRow)) {
+						dirtyTiles.set(t);
+					}
+				}
+				if (dirtyTiles.isEmpty()) {
+					mergeRows(damage, previousRow, currentRow);
+					previousRow.clear();
+					continue;
+				}
+
+				Rectangle bandBounds = FrameDiff.diffBand(previous, frame, width, tileY, tileHeight, tileSize, dirtyTiles);
+				if (bandBounds != null) {
+					dirtyBounds = dirtyBounds == null ? bandBounds : dirtyBounds.union(bandBounds);
+				}
+
+				/*
+				 * Consecutive dirty tiles form one rectangle.
+				 */
+				int tile = dirtyTiles.nextSetBit(0);
+				while (tile >= 0) {
+					int end = dirtyTiles.nextClearBit(tile);
+					int runX = tile * tileSize;
+					int runWidth = Math.min(end * tileSize, width) - runX;
+					currentRow.add(new Rectangle(runX, tileY, runWidth, tileHeight));
+					tile = dirtyTiles.nextSetBit(end);
+				}
+
+				mergeRows(damage, previousRow, currentRow);
+				List<Rectangle> swap = previousRow;
+				previousRow = currentRow;
+				currentRow = swap;
+				currentRow.clear();
+			}
+		}
+
+		previous = frame;
+		previousHashes = hashes;
+		this.width = width;
+		this.height = height;
+
+		return damage;
+	}
+
+	/**
+	 * @return frame that was passed to last {@link #update(int[], int, int)},
+	 * or null if there is none
+	 */
+	public int[] getPreviousFrame() {
+		return previous;
+	}
+
+	/**
+	 * @return smallest rectangle that holds all changed pixels found by
+	 * last {@link #update(int[], int, int)}, or null if nothing changed
+	 */
+	public Rectangle getDirtyBounds() {
+		return dirtyBounds;
+	}
+
+	/**
+	 * Forget previous frame, next update will report complete screen as changed.
+	 */
+	public void reset() {
+		previous = null;
+		previousHashes = null;
+	}
+
+	/**
+	 * Extend rectangles from previous tile row when current row has
+	 * rectangle with same horizontal span. Other rectangles of current
+	 * row are added to damage list.
+	 */
+	private void mergeRows(List<Rectangle> damage, List<Rectangle> previousRow, List<Rectangle> currentRow) {
+		for (int i = 0; i < currentRow.size(); i++) {
+			Rectangle current = currentRow.get(i);
+			Rectangle above = null;
+			for (Rectangle candidate : previousRow) {
+				if (candidate.x == current.x && candidate.width == current.width
+						&& candidate.y + candidate.height == current.y) {
+					above = candidate;
+					break;
+				}
+			}
+
+			if (above != null) {
+				above.height += current.height;
+				currentRow.set(i, above);
+			}
+			else {
+				damage.add(current);
+			}
+		}
+	}
+}
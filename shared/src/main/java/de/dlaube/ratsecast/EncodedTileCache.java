@@ -0,0 +1,112 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of encoded rectangles, shared by all client sessions.<BR>
+ * When several clients use same pixel format and encoding, each rectangle
+ * of a frame is encoded only once, and same bytes are written to every socket.
+ * Entry is identified by frame sequence number, rectangle, pixel format and
+ * encoding type. Only stateless encoders may be cached, see {@link Encoder#isStateless()},
+ * since output of other encoders depends on what was sent to client before.<BR>
+ * Session that asks for entry while another session encodes it waits until
+ * it is encoded, on entry lock rather than monitor, so waiting virtual thread
+ * does not pin its carrier thread. Entries of old frames are removed with {@link #evictBefore(long)}.
+ */
+public class EncodedTileCache {
+
+	private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+	/**
+	 * Write encoded rectangle in message. Rectangle is encoded if it is not in cache yet.
+	 *
+	 * @param frame frame where rectangle is taken from
+	 * @param rect rectangle to encode
+	 * @param encoder stateless encoder
+	 * @param pixelTranslator translator for client pixel format
+	 * @param scratch buffer where rectangle is encoded before it is cached
+	 * @param message buffer where encoded data is written
+	 * @throws IOException
+	 */
+	public void write(ScreenFrame frame, Rectangle rect, Encoder encoder, PixelTranslator pixelTranslator,
+			MessageBuffer scratch, MessageBuffer message) throws IOException {
+
+		Key key = new Key(frame.getSequence(), rect, pixelTranslator.getPixelFormat(), encoder.getEncodingType());
+		Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+
+		byte[] data;
+		entry.lock.lock();
+		try {
+			if (entry.data == null) {
+				scratch.reset();
+				encoder.encode(frame.getPixels(), frame.getWidth(), rect, pixelTranslator, scratch);
+				entry.data = Arrays.copyOf(scratch.array(), scratch.size());
+				scratch.reset();
+			}
+			data = entry.data;
+		} finally {
+			entry.lock.unlock();
+		}
+
+		message.write(data);
+		message.checkpoint();
+	}
+
+	/**
+	 * Remove entries of frames older than given one.
+	 *
+	 * @param sequence sequence number of oldest frame that is kept
+	 */
+	public void evictBefore(long sequence) {
+		entries.keySet().removeIf(key -> key.sequence < sequence);
+	}
+
+	private static final class Entry {
+		private final ReentrantLock lock = new ReentrantLock();
+		private byte[] data;
+	}
+
+	private static final class Key {
+
+		private final long sequence;
+		private final int x, y, width, height;
+		private final PixelFormat pixelFormat;
+		private final int encodingType;
+
+		Key(long sequence, Rectangle rect, PixelFormat pixelFormat, int encodingType) {
+			this.sequence = sequence;
+			this.x = rect.x;
+			this.y = rect.y;
+			this.width = rect.width;
+			this.height = rect.height;
+			this.pixelFormat = pixelFormat;
+			this.encodingType = encodingType;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return sequence == other.sequence && x == other.x && y == other.y
+					&& width == other.width && height == other.height
+					&& encodingType == other.encodingType && pixelFormat.equals(other.pixelFormat);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = Long.hashCode(sequence);
+			hash = hash * 31 + x;
+			hash = hash * 31 + y;
+			hash = hash * 31 + width;
+			hash = hash * 31 + height;
+			hash = hash * 31 + encodingType;
+			return hash * 31 + pixelFormat.hashCode();
+		}
+	}
+}
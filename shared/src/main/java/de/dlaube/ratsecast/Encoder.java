@@ -0,0 +1,78 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Encoder of rectangle pixel data, one implementation for each RFB encoding type.<BR>
+ * Rectangle header (position, size and encoding type) is written by caller, encoder
+ * writes only data that follows it. Each client session has its own encoder instances,
+ * since some encodings keep state for complete connection (eg. zlib streams).
+ */
+public interface Encoder {
+
+	/**
+	 * @return encoding type as defined in RFB protocol specification
+	 */
+	public int getEncodingType();
+
+	/**
+	 * Stateless encoder gives same output for same pixels, no matter what
+	 * it encoded before, so its output may be shared by several clients.
+	 * Encoders that keep state for connection (eg. zlib streams) are not stateless.
+	 *
+	 * @return true if encoder is stateless
+	 */
+	public default boolean isStateless() {
+		return false;
+	}
+
+	/**
+	 * Split rectangle into rectangles that encoding can send.
+	 * By default rectangle is not split.
+	 *
+	 * @param rect rectangle to send
+	 * @param rectangles list where rectangles are added
+	 */
+	public default void split(Rectangle rect, List<Rectangle> rectangles) {
+		rectangles.add(rect);
+	}
+
+	/**
+	 * Set compression level that client requested with pseudo encoding.
+	 * Encodings without compression ignore it.
+	 *
+	 * @param level compression level, 0-9
+	 */
+	public default void setCompressionLevel(int level) {
+	}
+
+	/**
+	 * Set quality level that client requested with pseudo encoding.
+	 * Lossless encodings ignore it.
+	 *
+	 * @param level quality level 0-9, or -1 if client did not request one
+	 */
+	public default void setQualityLevel(int level) {
+	}
+
+	/**
+	 * Encode rectangle of screen.
+	 *
+	 * @param frame screen pixels in <I>0x00RRGGBB</I> form
+	 * @param scanline number of pixels in one screen row
+	 * @param rect rectangle to encode
+	 * @param pixelTranslator translator for client pixel format
+	 * @param message buffer where encoded data is written
+	 * @throws IOException
+	 */
+	public void encode(int[] frame, int scanline, Rectangle rect, PixelTranslator pixelTranslator, MessageBuffer message) throws IOException;
+
+	/**
+	 * Release resources that encoder keeps for connection, such as native
+	 * memory of zlib streams. Called once when connection ends.
+	 */
+	public default void close() {
+	}
+}
@@ -0,0 +1,109 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compares two frames of same size, one band of tile rows at a time.<BR>
+ * Rows of each tile are compared with {@link Arrays#mismatch(int[], int, int, int[], int, int)},
+ * which JIT compiler replaces with vectorized (SIMD) code, so unchanged parts of
+ * screen are skipped many pixels per instruction. Only tiles that caller marked as
+ * candidates are compared, eg. tiles whose {@link TileHashes} differ.<BR>
+ * Plain loop comparison can be forced with system property
+ * <I>ratsecast.scalarDiff=true</I>.
+ */
+public class FrameDiff {
+
+	private static final boolean SCALAR = Boolean.getBoolean("ratsecast.scalarDiff");
+
+	private FrameDiff() {
+	}
+
+	/**
+	 * Compare one band of rows, tile by tile, and find which tiles really differ.
+	 *
+	 * @param previous previous frame
+	 * @param current current frame
+	 * @param width frame width, also number of pixels in one row
+	 * @param y first row of band
+	 * @param height number of rows in band
+	 * @param tileSize tile width
+	 * @param dirtyTiles on input, tile columns that should be compared. On output,
+	 * only columns of tiles that differ stay set.
+	 * @return bounding box of changed pixels in band, or null if band did not change
+	 */
+	public static Rectangle diffBand(int[] previous, int[] current, int width, int y, int height, int tileSize, BitSet dirtyTiles) {
+		Rectangle bounds = null;
+
+		for (int tile = dirtyTiles.nextSetBit(0); tile >= 0; tile = dirtyTiles.nextSetBit(tile + 1)) {
+			int tileX = tile * tileSize;
+			int tileWidth = Math.min(tileSize, width - tileX);
+
+			Rectangle tileBounds = diffTile(previous, current, width, tileX, y, tileWidth, height);
+			if (tileBounds == null) {
+				dirtyTiles.clear(tile);
+			}
+			else {
+				bounds = bounds == null ? tileBounds : bounds.union(tileBounds);
+			}
+		}
+
+		return bounds;
+	}
+
+	/**
+	 * Find bounding box of changed pixels in one tile.
+	 * Once first changed pixel of a row is found, only part of row right
+	 * of current bounding box is checked, from its end backwards.
+	 *
+	 * @return bounding box of changed pixels, or null if tile did not change
+	 */
+	private static Rectangle diffTile(int[] previous, int[] current, int width, int x, int y, int tileWidth, int tileHeight) {
+		int minX = Integer.MAX_VALUE, maxX = -1;
+		int minY = -1, maxY = -1;
+
+		for (int row = y; row < y + tileHeight; row++) {
+			int start = row * width + x;
+			int m = mismatch(previous, current, start, start + tileWidth);
+			if (m < 0) {
+				continue;
+			}
+
+			minX = Math.min(minX, m);
+			maxX = Math.max(maxX, m);
+			for (int col = tileWidth - 1; col > maxX; col--) {
+				if (previous[start + col] != current[start + col]) {
+					maxX = col;
+					break;
+				}
+			}
+
+			if (minY < 0) {
+				minY = row;
+			}
+			maxY = row;
+		}
+
+		if (minY < 0) {
+			return null;
+		}
+		return new Rectangle(x + minX, minY, maxX - minX + 1, maxY - minY + 1);
+	}
+
+	/**
+	 * @return relative index of first pixel in range that differs, or -1 if range is same
+	 */
+	private static int mismatch(int[] previous, int[] current, int from, int to) {
+		if (!SCALAR) {
+			return Arrays.mismatch(previous, from, to, current, from, to);
+		}
+
+		for (int i = from; i < to; i++) {
+			if (previous[i] != current[i]) {
+				return i - from;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,146 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+
+/**
+ * Hextile encoding (encoding type 5).<BR>
+ * Rectangle is divided into 16x16 tiles. Each tile is sent as background color
+ * with subrectangles of other colors, found with {@link SubrectCoder}. Background and foreground colors are
+ * remembered from previous tile, so they are sent only when they change.
+ * Tile that would be larger than its raw pixels is sent raw.
+ */
+public class HextileEncoder implements Encoder {
+
+	private static final int TILE_SIZE = 16;
+
+	private static final int RAW = 1;
+	private static final int BACKGROUND_SPECIFIED = 2;
+	private static final int FOREGROUND_SPECIFIED = 4;
+	private static final int ANY_SUBRECTS = 8;
+	private static final int SUBRECTS_COLOURED = 16;
+
+	private final SubrectCoder subrectCoder = new SubrectCoder(TILE_SIZE * TILE_SIZE);
+
+	private boolean validBackground, validForeground;
+	private int background, foreground;
+
+	@Override
+	public int getEncodingType() {
+		return 5;
+	}
+
+	@Override
+	public boolean isStateless() {
+		return true;
+	}
+
+	@Override
+	public void encode(int[] frame, int scanline, Rectangle rect, PixelTranslator pixelTranslator, MessageBuffer message) throws IOException {
+		/*
+		 * Background and foreground colors are valid only inside one rectangle.
+		 */
+		validBackground = false;
+		validForeground = false;
+
+		for (int y = rect.y; y < rect.y + rect.height; y += TILE_SIZE) {
+			int tileHeight = Math.min(TILE_SIZE, rect.y + rect.height - y);
+			for (int x = rect.x; x < rect.x + rect.width; x += TILE_SIZE) {
+				int tileWidth = Math.min(TILE_SIZE, rect.x + rect.width - x);
+				encodeTile(frame, scanline, x, y, tileWidth, tileHeight, pixelTranslator, message);
+			}
+			message.checkpoint();
+		}
+	}
+
+	private void encodeTile(int[] frame, int scanline, int x, int y, int width, int height,
+			PixelTranslator pixelTranslator, MessageBuffer message) {
+
+		int count = subrectCoder.load(frame, scanline, x, y, width, height, pixelTranslator);
+		int bytesPerPixel = pixelTranslator.getBytesPerPixel();
+
+		int tileBackground = subrectCoder.mostFrequentColor();
+		int tileForeground = 0;
+		int colors = 1;
+		for (int i = 0; i < count; i++) {
+			int pixel = subrectCoder.getPixel(i);
+			if (pixel != tileBackground) {
+				if (colors == 1) {
+					tileForeground = pixel;
+					colors = 2;
+				}
+				else if (pixel != tileForeground) {
+					colors = 3;
+					break;
+				}
+			}
+		}
+
+		int rawSize = 1 + count * bytesPerPixel;
+		int start = message.reserve(rawSize + 2 * bytesPerPixel + 2 + count * (bytesPerPixel + 2));
+		byte[] buffer = message.array();
+
+		int mask = 0;
+		int pos = start + 1;
+		boolean raw = false;
+
+		if (!validBackground || background != tileBackground) {
+			mask |= BACKGROUND_SPECIFIED;
+			pos = pixelTranslator.writePixel(tileBackground, buffer, pos);
+		}
+
+		if (colors > 1) {
+			mask |= ANY_SUBRECTS;
+			if (colors == 2) {
+				if (!validForeground || foreground != tileForeground) {
+					mask |= FOREGROUND_SPECIFIED;
+					pos = pixelTranslator.writePixel(tileForeground, buffer, pos);
+				}
+			}
+			else {
+				mask |= SUBRECTS_COLOURED;
+			}
+
+			int countPos = pos++;
+			int subrects = 0;
+
+			subrectCoder.start(tileBackground);
+			while (!raw && subrectCoder.nextSubrect()) {
+				if ((mask & SUBRECTS_COLOURED) != 0) {
+					pos = pixelTranslator.writePixel(subrectCoder.getSubrectColor(), buffer, pos);
+				}
+				buffer[pos++] = (byte) ((subrectCoder.getSubrectX() << 4) | subrectCoder.getSubrectY());
+				buffer[pos++] = (byte) (((subrectCoder.getSubrectWidth() - 1) << 4) | (subrectCoder.getSubrectHeight() - 1));
+				subrects++;
+
+				raw = subrects > 255 || pos - start > rawSize;
+			}
+
+			buffer[countPos] = (byte) subrects;
+		}
+
+		if (raw) {
+			/*
+			 * Subrectangles take more space than raw pixels.
+			 */
+			buffer[start] = RAW;
+			pos = pixelTranslator.translate(frame, y * scanline + x, scanline, width, height, buffer, start + 1);
+			validBackground = false;
+			validForeground = false;
+		}
+		else {
+			buffer[start] = (byte) mask;
+			background = tileBackground;
+			validBackground = true;
+			if ((mask & SUBRECTS_COLOURED) != 0) {
+				validForeground = false;
+			}
+			else if (colors == 2) {
+				foreground = tileForeground;
+				validForeground = true;
+			}
+		}
+
+		message.setPosition(pos);
+	}
+}
@@ -0,0 +1,263 @@
+package de.dlaube.ratsecast;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Injects input events on its own thread.<BR>
+ * Native input calls, such as <I>Robot.mouseMove</I>, may take milliseconds each.
+ * Dispatcher wraps {@link NativeInterface}, queues key and pointer events, and
+ * one dispatcher thread injects them in order, so session thread returns to its
+ * socket at once.<BR>
+ * Queue has capacity, but adding event never waits, in non-blocking mode caller is
+ * selector thread of all clients. Sessions instead check for room before they decode
+ * next input message, see {@link #isFull()} and {@link #awaitRoom()}, so key and
+ * button events are never dropped. Only pointer move is dropped when queue is full.<BR>
+ * Pointer move that follows another pointer move which is still queued replaces
+ * its position, so under fast mouse movement only latest position is injected.<BR>
+ * Queue is a ring of preallocated events that are reused, so queueing an event does
+ * not allocate. Ring grows only when sessions add events beyond capacity.<BR>
+ * Screen capture and screen size are not queued, they are delegated directly.
+ */
+public class InputDispatcher implements NativeInterface, Runnable {
+
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private static final int KEY = 0;
+	private static final int MOVE = 1;
+	private static final int BUTTON = 2;
+	private static final int WHEEL = 3;
+
+	private final NativeInterface nativeInterface;
+	private final int capacity;
+
+	/**
+	 * Ring of queued events, from head on.
+	 */
+	private InputEvent[] ring;
+	private int head;
+	private int size;
+
+	/**
+	 * Event that dispatcher thread injects, copied from ring.
+	 */
+	private final InputEvent current = new InputEvent();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	private Thread thread;
+
+	public InputDispatcher(NativeInterface nativeInterface) {
+		this(nativeInterface, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param nativeInterface interface where events are injected
+	 * @param capacity number of queued events at which sessions stop decoding input messages
+	 */
+	public InputDispatcher(NativeInterface nativeInterface, int capacity) {
+		this.nativeInterface = nativeInterface;
+		this.capacity = capacity;
+		this.ring = newEvents(capacity);
+	}
+
+	/**
+	 * Start dispatcher thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread(this, "InputDispatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			lock.lock();
+			try {
+				while (size == 0) {
+					notEmpty.await();
+				}
+				current.set(ring[head]);
+				head = (head + 1) % ring.length;
+				size--;
+				if (size < capacity) {
+					notFull.signalAll();
+				}
+			} catch (InterruptedException e) {
+				break;
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				inject(current);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void inject(InputEvent event) {
+		switch (event.type) {
+			case KEY:
+				nativeInterface.keyDown(event.code, event.down);
+				break;
+			case MOVE:
+				nativeInterface.mouseMove(event.x, event.y);
+				break;
+			case BUTTON:
+				nativeInterface.mouseButton(event.code, event.down, event.x, event.y);
+				break;
+			case WHEEL:
+				nativeInterface.mouseWheel(event.down);
+				break;
+		}
+	}
+
+	/**
+	 * Add event at end of queue, without waiting.
+	 * Pointer move replaces queued pointer move at end of queue,
+	 * and is dropped when queue is full.
+	 */
+	private void enqueue(int type, int code, boolean down, int x, int y) {
+		lock.lock();
+		try {
+			if (type == MOVE && size > 0) {
+				InputEvent last = ring[(head + size - 1) % ring.length];
+				if (last.type == MOVE) {
+					last.x = x;
+					last.y = y;
+					return;
+				}
+			}
+
+			if (type == MOVE && size >= capacity) {
+				return;
+			}
+			if (size == ring.length) {
+				grow();
+			}
+			InputEvent event = ring[(head + size) % ring.length];
+			event.type = type;
+			event.code = code;
+			event.down = down;
+			event.x = x;
+			event.y = y;
+			size++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void grow() {
+		InputEvent[] larger = newEvents(ring.length * 2);
+		for (int i = 0; i < size; i++) {
+			larger[i].set(ring[(head + i) % ring.length]);
+		}
+		ring = larger;
+		head = 0;
+	}
+
+	private static InputEvent[] newEvents(int count) {
+		InputEvent[] events = new InputEvent[Math.max(1, count)];
+		for (int i = 0; i < events.length; i++) {
+			events[i] = new InputEvent();
+		}
+		return events;
+	}
+
+	/**
+	 * Session in non-blocking mode does not decode next input message
+	 * while queue is full, and stops reading its channel instead.
+	 *
+	 * @return true if queue holds capacity or more events
+	 */
+	public boolean isFull() {
+		lock.lock();
+		try {
+			return size >= capacity;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait while queue is full. Session thread in blocking mode
+	 * calls this before it decodes next input message.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitRoom() throws InterruptedException {
+		lock.lock();
+		try {
+			while (size >= capacity) {
+				notFull.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void keyDown(int keyCode, boolean keyDown) {
+		enqueue(KEY, keyCode, keyDown, 0, 0);
+	}
+
+	@Override
+	public void mouseMove(int x, int y) {
+		enqueue(MOVE, 0, false, x, y);
+	}
+
+	@Override
+	public void mouseButton(int buttonCode, boolean buttonDown, int x, int y) {
+		enqueue(BUTTON, buttonCode, buttonDown, x, y);
+	}
+
+	@Override
+	public void mouseWheel(boolean direction) {
+		enqueue(WHEEL, 0, direction, 0, 0);
+	}
+
+	@Override
+	public int[] getImageBuffer(int x, int y, int width, int height) {
+		return nativeInterface.getImageBuffer(x, y, width, height);
+	}
+
+	@Override
+	public int getScreenWidth() {
+		return nativeInterface.getScreenWidth();
+	}
+
+	@Override
+	public int getScreenHeight() {
+		return nativeInterface.getScreenHeight();
+	}
+
+	@Override
+	public int getPixelSize() {
+		return nativeInterface.getPixelSize();
+	}
+
+	private static final class InputEvent {
+
+		private int type;
+		private int code;
+		private boolean down;
+		private int x, y;
+
+		void set(InputEvent other) {
+			type = other.type;
+			code = other.code;
+			down = other.down;
+			x = other.x;
+			y = other.y;
+		}
+	}
+}
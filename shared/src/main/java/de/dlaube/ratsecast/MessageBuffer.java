@@ -0,0 +1,162 @@
+package de.dlaube.ratsecast;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer where server messages are assembled before they
+ * are written on socket with a single bulk write. Each client session owns
+ * one instance and reuses it for all messages, so after first few frame
+ * buffer updates no more memory is allocated.<BR>
+ * Buffer may have a sink, the socket stream. Encoders call {@link #checkpoint()}
+ * between parts of large rectangles, and once buffer holds enough bytes, they
+ * are written on sink, so buffer does not grow to size of complete screen.<BR>
+ * Multi-byte values are written in network byte order (big endian).
+ */
+public class MessageBuffer {
+
+	private byte[] buffer;
+	private int position;
+
+	private final OutputStream sink;
+	private final int flushThreshold;
+
+	/**
+	 * Buffer without sink, content is only kept in memory.
+	 *
+	 * @param initialCapacity initial size of buffer
+	 */
+	public MessageBuffer(int initialCapacity) {
+		this(initialCapacity, null, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param initialCapacity initial size of buffer
+	 * @param sink stream where buffer content is written at checkpoints
+	 * @param flushThreshold number of bytes at which buffer is written on sink
+	 */
+	public MessageBuffer(int initialCapacity, OutputStream sink, int flushThreshold) {
+		buffer = new byte[initialCapacity];
+		position = 0;
+		this.sink = sink;
+		this.flushThreshold = flushThreshold;
+	}
+
+	/**
+	 * Make sure that buffer has room for more bytes.
+	 * Caller may then write directly into {@link #array()}
+	 * and move position with {@link #setPosition(int)}.
+	 *
+	 * @param length number of bytes that will be written
+	 * @return current position in buffer
+	 */
+	public int reserve(int length) {
+		int required = position + length;
+		if (required > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+		}
+		return position;
+	}
+
+	/**
+	 * @return underlying array, valid until next call to {@link #reserve(int)}
+	 */
+	public byte[] array() {
+		return buffer;
+	}
+
+	/**
+	 * @return number of bytes written in buffer
+	 */
+	public int size() {
+		return position;
+	}
+
+	public void setPosition(int position) {
+		this.position = position;
+	}
+
+	/**
+	 * Write 1 byte.
+	 *
+	 * @param value integer value between 0 and 255
+	 */
+	public void writeU8(int value) {
+		reserve(1);
+		buffer[position++] = (byte) value;
+	}
+
+	/**
+	 * Write 2 bytes.
+	 *
+	 * @param value integer value between 0 and 65535
+	 */
+	public void writeU16(int value) {
+		reserve(2);
+		buffer[position++] = (byte) (value >> 8);
+		buffer[position++] = (byte) value;
+	}
+
+	/**
+	 * Write 4 bytes.
+	 *
+	 * @param value integer value between <I>Integer.MIN_VALUE</I> and <I>Integer.MAX_VALUE</I>
+	 */
+	public void writeS32(int value) {
+		reserve(4);
+		buffer[position++] = (byte) (value >> 24);
+		buffer[position++] = (byte) (value >> 16);
+		buffer[position++] = (byte) (value >> 8);
+		buffer[position++] = (byte) value;
+	}
+
+	/**
+	 * Write array of bytes.
+	 *
+	 * @param bytes source array
+	 * @param offset position in source array
+	 * @param length number of bytes to copy
+	 */
+	public void write(byte[] bytes, int offset, int length) {
+		reserve(length);
+		System.arraycopy(bytes, offset, buffer, position, length);
+		position += length;
+	}
+
+	public void write(byte[] bytes) {
+		write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Write buffer content on stream and empty buffer.
+	 *
+	 * @param out output stream
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	/**
+	 * Write buffer content on sink if it holds at least flush threshold bytes.
+	 * Caller must not keep any position in buffer across this call.
+	 *
+	 * @throws IOException
+	 */
+	public void checkpoint() throws IOException {
+		if (sink != null && position >= flushThreshold) {
+			writeTo(sink);
+		}
+	}
+
+	/**
+	 * Discard buffer content.
+	 */
+	public void reset() {
+		position = 0;
+	}
+}
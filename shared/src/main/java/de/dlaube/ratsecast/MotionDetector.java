@@ -0,0 +1,193 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds block of screen that moved between two frames, like scrolled
+ * browser page, terminal output or dragged window. Such block can be sent
+ * as {@link CopyRect}, client then copies pixels it already has.<BR>
+ * Within changed area, a hash of every row is computed in both frames. Each
+ * row of current frame, whose hash appears exactly once in previous frame,
+ * votes for vertical shift. Shift with most votes wins, and longest run of
+ * rows that match with that shift becomes the moved block. If no vertical
+ * shift is found, same is done with column hashes for horizontal shift.
+ * Moved block is finally compared pixel by pixel.
+ */
+public class MotionDetector {
+
+	/**
+	 * Minimal number of rows (or columns) that must vote for same shift.
+	 */
+	private static final int MIN_VOTES = 8;
+
+	/**
+	 * Minimal number of rows (or columns) of moved block.
+	 */
+	private static final int MIN_LENGTH = 16;
+
+	/**
+	 * Minimal number of pixels of moved block, smaller blocks are cheaper to send as they are.
+	 */
+	private static final int MIN_PIXELS = 64 * 64;
+
+	private MotionDetector() {
+	}
+
+	/**
+	 * Find moved block inside changed area.
+	 *
+	 * @param previous previous frame, as client has it
+	 * @param current current frame
+	 * @param width frame width
+	 * @param area changed area, eg. {@link DamageTracker#getDirtyBounds()}
+	 * @return moved block, or null if no block moved
+	 */
+	public static CopyRect detect(int[] previous, int[] current, int width, Rectangle area) {
+		if (area.width < MIN_LENGTH || area.height < MIN_LENGTH) {
+			return null;
+		}
+
+		CopyRect copyRect = detectVertical(previous, current, width, area);
+		if (copyRect == null) {
+			copyRect = detectHorizontal(previous, current, width, area);
+		}
+		return copyRect;
+	}
+
+	private static CopyRect detectVertical(int[] previous, int[] current, int width, Rectangle area) {
+		long[] previousHashes = new long[area.height];
+		long[] currentHashes = new long[area.height];
+
+		for (int i = 0; i < area.height; i++) {
+			int start = (area.y + i) * width + area.x;
+			previousHashes[i] = TileHashes.hashSegment(previous, start, start + area.width);
+			currentHashes[i] = TileHashes.hashSegment(current, start, start + area.width);
+		}
+
+		int[] run = findShift(previousHashes, currentHashes);
+		if (run == null || run[2] * area.width < MIN_PIXELS) {
+			return null;
+		}
+
+		int shift = run[0];
+		Rectangle destination = new Rectangle(area.x, area.y + run[1], area.width, run[2]);
+		CopyRect copyRect = new CopyRect(destination, area.x, destination.y - shift);
+		return verify(previous, current, width, copyRect) ? copyRect : null;
+	}
+
+	private static CopyRect detectHorizontal(int[] previous, int[] current, int width, Rectangle area) {
+		long[] previousHashes = new long[area.width];
+		long[] currentHashes = new long[area.width];
+		Arrays.fill(previousHashes, TileHashes.SEED);
+		Arrays.fill(currentHashes, TileHashes.SEED);
+
+		/*
+		 * Columns are hashed row by row, so frames are read in memory order.
+		 */
+		for (int row = area.y; row < area.y + area.height; row++) {
+			int start = row * width + area.x;
+			for (int i = 0; i < area.width; i++) {
+				previousHashes[i] = TileHashes.mix(previousHashes[i], previous[start + i]);
+				currentHashes[i] = TileHashes.mix(currentHashes[i], current[start + i]);
+			}
+		}
+		for (int i = 0; i < area.width; i++) {
+			previousHashes[i] = TileHashes.avalanche(previousHashes[i]);
+			currentHashes[i] = TileHashes.avalanche(currentHashes[i]);
+		}
+
+		int[] run = findShift(previousHashes, currentHashes);
+		if (run == null || run[2] * area.height < MIN_PIXELS) {
+			return null;
+		}
+
+		int shift = run[0];
+		Rectangle destination = new Rectangle(area.x + run[1], area.y, run[2], area.height);
+		CopyRect copyRect = new CopyRect(destination, destination.x - shift, area.y);
+		return verify(previous, current, width, copyRect) ? copyRect : null;
+	}
+
+	/**
+	 * Find most common shift between hashes and longest run of matching hashes with that shift.
+	 *
+	 * @return array with shift, start of run and length of run, or null if there is no shift
+	 */
+	private static int[] findShift(long[] previousHashes, long[] currentHashes) {
+		int length = previousHashes.length;
+
+		/*
+		 * Index of every hash that appears only once in previous frame.
+		 * Repeated hashes (eg. empty lines) would vote for many shifts.
+		 */
+		Map<Long, Integer> index = new HashMap<Long, Integer>();
+		for (int i = 0; i < length; i++) {
+			Integer existing = index.put(previousHashes[i], i);
+			if (existing != null) {
+				index.put(previousHashes[i], -1);
+			}
+		}
+
+		Map<Integer, Integer> votes = new HashMap<Integer, Integer>();
+		for (int i = 0; i < length; i++) {
+			if (currentHashes[i] == previousHashes[i]) {
+				continue;
+			}
+			Integer source = index.get(currentHashes[i]);
+			if (source != null && source >= 0) {
+				votes.merge(i - source, 1, Integer::sum);
+			}
+		}
+
+		int shift = 0, maxVotes = 0;
+		for (Map.Entry<Integer, Integer> vote : votes.entrySet()) {
+			if (vote.getValue() > maxVotes) {
+				shift = vote.getKey();
+				maxVotes = vote.getValue();
+			}
+		}
+		if (maxVotes < MIN_VOTES) {
+			return null;
+		}
+
+		int bestStart = 0, bestLength = 0;
+		int runStart = -1;
+		for (int i = 0; i <= length; i++) {
+			int source = i - shift;
+			boolean match = i < length && source >= 0 && source < length
+					&& currentHashes[i] == previousHashes[source];
+			if (match && runStart < 0) {
+				runStart = i;
+			}
+			else if (!match && runStart >= 0) {
+				if (i - runStart > bestLength) {
+					bestStart = runStart;
+					bestLength = i - runStart;
+				}
+				runStart = -1;
+			}
+		}
+
+		if (bestLength < MIN_LENGTH) {
+			return null;
+		}
+		return new int[] {shift, bestStart, bestLength};
+	}
+
+	/**
+	 * Compare destination area of current frame with source area of previous frame.
+	 */
+	private static boolean verify(int[] previous, int[] current, int width, CopyRect copyRect) {
+		Rectangle destination = copyRect.getDestination();
+		for (int row = 0; row < destination.height; row++) {
+			int to = (destination.y + row) * width + destination.x;
+			int from = (copyRect.getSrcY() + row) * width + copyRect.getSrcX();
+			if (!Arrays.equals(current, to, to + destination.width, previous, from, from + destination.width)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
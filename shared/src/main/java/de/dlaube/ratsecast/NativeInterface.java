@@ -1,13 +1,37 @@
 package de.dlaube.ratsecast;
 
+import java.awt.Toolkit;
+
 public interface NativeInterface {
     public void keyDown(int keyCode, boolean keyDown);
     public void mouseMove(int x, int y);
+
+    /**
+     * Press or release mouse button at given position.
+     * Button code is 0 for left, 1 for right and 2 for middle button.
+     */
     public void mouseButton(int buttonCode, boolean buttonDown, int x, int y);
+
+    /**
+     * Turn mouse wheel one step, up when direction is false, down when it is true.
+     */
     public void mouseWheel(boolean direction);
 
+    /**
+     * Capture part of screen. Pixels are in <I>0x00RRGGBB</I> form, row by row.
+     * Each call must return a new array, since captured frames are kept and
+     * compared with following ones.
+     */
     public int[] getImageBuffer(int x, int y, int width, int height);
 
     public int getScreenWidth();
     public int getScreenHeight();
+
+    /**
+     * Bits per pixel of screen, sent to viewer in server init message.
+     * Default is taken from color model of display.
+     */
+    public default int getPixelSize() {
+        return Toolkit.getDefaultToolkit().getColorModel().getPixelSize();
+    }
 }
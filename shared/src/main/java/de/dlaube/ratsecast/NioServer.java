@@ -0,0 +1,166 @@
+package de.dlaube.ratsecast;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * RFB server that serves all clients from single thread.<BR>
+ * Instead of one blocking thread per client, channels of all clients are
+ * non-blocking and registered with one {@link Selector}. Received data is
+ * handled by {@link NioSession} of each client, and pending frame buffer
+ * updates are sent after each selection, at most every {@link #POLL_INTERVAL}
+ * milliseconds.
+ */
+public class NioServer implements Runnable {
+
+	/**
+	 * Longest time to wait for channel events, in milliseconds.
+	 */
+	public static final long POLL_INTERVAL = 20;
+
+	private final int port;
+	private final NativeInterface nativeInterface;
+	private final CaptureScheduler captureScheduler;
+
+	private final List<NioSession> sessions = new ArrayList<NioSession>();
+
+	/**
+	 * @param port TCP port where server accepts clients
+	 * @param nativeInterface interface for input events and screen capture
+	 * @param captureScheduler scheduler that captures screen for all sessions, or null
+	 */
+	public NioServer(int port, NativeInterface nativeInterface, CaptureScheduler captureScheduler) {
+		this.port = port;
+		this.nativeInterface = nativeInterface;
+		this.captureScheduler = captureScheduler;
+	}
+
+	@Override
+	public void run() {
+		try (Selector selector = Selector.open();
+				ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+
+			serverChannel.bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+			while (!Thread.currentThread().isInterrupted()) {
+				selector.select(POLL_INTERVAL);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						try {
+							accept(selector, serverChannel);
+						} catch (IOException e) {
+							/*
+							 * Eg. too many open files, server keeps serving
+							 * connected clients.
+							 */
+							err("Client not accepted: " + e.getMessage());
+						}
+						continue;
+					}
+
+					NioSession session = (NioSession) key.attachment();
+					try {
+						if (key.isReadable() && !session.read()) {
+							log("Client closed connection.");
+							close(session);
+							continue;
+						}
+						if (key.isValid() && key.isWritable()) {
+							session.write();
+						}
+					} catch (IOException | RuntimeException e) {
+						err("Client session failed: " + e.getMessage());
+						close(session);
+					}
+				}
+
+				/*
+				 * Send frame buffer updates to clients that asked for one.
+				 */
+				for (NioSession session : new ArrayList<NioSession>(sessions)) {
+					try {
+						session.update();
+					} catch (IOException | RuntimeException e) {
+						err("Client session failed: " + e.getMessage());
+						close(session);
+					}
+				}
+			}
+		} catch (IOException e) {
+			err("Server failed: " + e.getMessage());
+		} finally {
+			for (NioSession session : sessions) {
+				session.close();
+			}
+			sessions.clear();
+		}
+	}
+
+	private void accept(Selector selector, ServerSocketChannel serverChannel) throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+
+		NioSession session;
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			log("Client connected: " + channel.getRemoteAddress());
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			session = new NioSession(channel, key, nativeInterface, captureScheduler);
+			key.attach(session);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		sessions.add(session);
+
+		try {
+			session.open();
+		} catch (IOException | RuntimeException e) {
+			err("Client session failed: " + e.getMessage());
+			close(session);
+		}
+	}
+
+	private void close(NioSession session) {
+		session.close();
+		sessions.remove(session);
+	}
+
+	/**
+	 * Write line of text on std.out.
+	 *
+	 * @param line text line
+	 */
+	private void log(String line) {
+		System.out.println(line);
+	}
+
+	/**
+	 * Write line of text on std.err.
+	 *
+	 * @param line text line
+	 */
+	private void err(String line) {
+		System.err.println(line);
+	}
+}
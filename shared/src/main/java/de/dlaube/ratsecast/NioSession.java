@@ -0,0 +1,227 @@
+package de.dlaube.ratsecast;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Client connection served by {@link NioServer}.<BR>
+ * Data received on channel is collected in input buffer, and {@link RFBService}
+ * handles complete messages from it. Data that session writes is queued and written
+ * on channel as far as channel accepts it, rest is written once channel becomes
+ * writable again. New frame buffer updates are sent only when write queue is empty,
+ * so slow client does not make queue grow. Likewise channel is not read while
+ * input dispatcher is full.
+ */
+public class NioSession {
+
+	/**
+	 * Largest client message, larger ones close connection.
+	 */
+	private static final int MAX_INPUT = 4 * 1024 * 1024;
+
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final RFBService service;
+
+	private ByteBuffer input = ByteBuffer.allocate(4 * 1024);
+	private final Deque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * True while input event waits for room in input dispatcher.
+	 * Channel is not read meanwhile, so client is slowed down by TCP.
+	 */
+	private boolean inputPaused;
+
+	/**
+	 * @param channel non-blocking client channel
+	 * @param key selection key of channel
+	 * @param nativeInterface interface for input events and screen capture
+	 * @param captureScheduler scheduler that captures screen for all sessions, or null
+	 */
+	public NioSession(SocketChannel channel, SelectionKey key, NativeInterface nativeInterface, CaptureScheduler captureScheduler) {
+		this.channel = channel;
+		this.key = key;
+		this.service = new RFBService(new InputBufferStream(), new QueueStream(), nativeInterface, captureScheduler);
+	}
+
+	/**
+	 * Start handshake.
+	 *
+	 * @throws IOException
+	 */
+	public void open() throws IOException {
+		service.open();
+	}
+
+	/**
+	 * Read data that arrived on channel and handle complete messages.
+	 *
+	 * @return false if client closed connection
+	 * @throws IOException
+	 */
+	public boolean read() throws IOException {
+		if (!input.hasRemaining()) {
+			if (input.capacity() >= MAX_INPUT) {
+				throw new IOException("Client message too large.");
+			}
+			ByteBuffer larger = ByteBuffer.allocate(input.capacity() * 2);
+			input.flip();
+			larger.put(input);
+			input = larger;
+		}
+
+		int count = channel.read(input);
+		if (count < 0) {
+			return false;
+		}
+
+		handleInput();
+		return true;
+	}
+
+	private void handleInput() throws IOException {
+		input.flip();
+		try {
+			inputPaused = !service.processInput();
+		} finally {
+			input.compact();
+		}
+		updateInterestOps();
+	}
+
+	private void updateInterestOps() {
+		int ops = inputPaused ? 0 : SelectionKey.OP_READ;
+		if (!writeQueue.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Write queued data as far as channel accepts it.
+	 *
+	 * @throws IOException
+	 */
+	public void write() throws IOException {
+		while (!writeQueue.isEmpty()) {
+			ByteBuffer buffer = writeQueue.peek();
+			channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				break;
+			}
+			writeQueue.poll();
+		}
+		updateInterestOps();
+	}
+
+	/**
+	 * Handle input that waits for input dispatcher, once it has room.
+	 * Then send frame buffer update if one is requested, screen changed,
+	 * and everything sent before is already written on channel.
+	 *
+	 * @throws IOException
+	 */
+	public void update() throws IOException {
+		if (inputPaused && !service.isInputFull()) {
+			handleInput();
+		}
+		if (writeQueue.isEmpty() && service.hasPendingUpdate()) {
+			service.sendPendingUpdate();
+		}
+	}
+
+	/**
+	 * Close connection and release encoders of session.
+	 */
+	public void close() {
+		service.close();
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			/*
+			 * Channel is closed anyway.
+			 */
+		}
+	}
+
+	/**
+	 * Input stream over received data. Session reads from it only
+	 * when it holds complete message.
+	 */
+	private class InputBufferStream extends InputStream {
+
+		@Override
+		public int read() {
+			return input.hasRemaining() ? input.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!input.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(len, input.remaining());
+			input.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return input.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public void mark(int readlimit) {
+			input.mark();
+		}
+
+		@Override
+		public void reset() {
+			input.reset();
+		}
+	}
+
+	/**
+	 * Output stream that writes data on channel as far as channel accepts it.
+	 * Only rest that channel does not accept is copied and queued, since
+	 * session reuses its buffer. Queued data is written when flushed.
+	 */
+	private class QueueStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len > 0 && writeQueue.isEmpty()) {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				channel.write(buffer);
+				off = buffer.position();
+				len = buffer.remaining();
+			}
+			if (len > 0) {
+				writeQueue.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			NioSession.this.write();
+		}
+	}
+}
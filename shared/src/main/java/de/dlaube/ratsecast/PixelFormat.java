@@ -0,0 +1,144 @@
+package de.dlaube.ratsecast;
+
+/**
+ * Pixel format as described in RFB protocol specification.<BR>
+ * It is sent by server in <I>ServerInit</I> message and may be changed
+ * by client with <I>SetPixelFormat</I> message. Instances are immutable, so
+ * they can be compared and used as keys when same pixel data is shared
+ * among client sessions.
+ */
+public final class PixelFormat {
+
+	private final int bitsPerPixel;
+	private final int depth;
+	private final boolean bigEndian;
+	private final boolean trueColor;
+	private final int redMax, greenMax, blueMax;
+	private final int redShift, greenShift, blueShift;
+
+	public PixelFormat(int bitsPerPixel, int depth, boolean bigEndian, boolean trueColor,
+			int redMax, int greenMax, int blueMax,
+			int redShift, int greenShift, int blueShift) {
+		this.bitsPerPixel = bitsPerPixel;
+		this.depth = depth;
+		this.bigEndian = bigEndian;
+		this.trueColor = trueColor;
+		this.redMax = redMax;
+		this.greenMax = greenMax;
+		this.blueMax = blueMax;
+		this.redShift = redShift;
+		this.greenShift = greenShift;
+		this.blueShift = blueShift;
+	}
+
+	public int getBitsPerPixel() {
+		return bitsPerPixel;
+	}
+
+	public int getBytesPerPixel() {
+		return bitsPerPixel / 8;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public boolean isBigEndian() {
+		return bigEndian;
+	}
+
+	public boolean isTrueColor() {
+		return trueColor;
+	}
+
+	public int getRedMax() {
+		return redMax;
+	}
+
+	public int getGreenMax() {
+		return greenMax;
+	}
+
+	public int getBlueMax() {
+		return blueMax;
+	}
+
+	public int getRedShift() {
+		return redShift;
+	}
+
+	public int getGreenShift() {
+		return greenShift;
+	}
+
+	public int getBlueShift() {
+		return blueShift;
+	}
+
+	/**
+	 * Check if pixel value has same layout as captured screen pixels,
+	 * that is <I>0x00RRGGBB</I>.
+	 *
+	 * @return true if no color conversion is needed
+	 */
+	public boolean isScreenLayout() {
+		return trueColor
+				&& redMax == 0xFF && greenMax == 0xFF && blueMax == 0xFF
+				&& redShift == 16 && greenShift == 8 && blueShift == 0;
+	}
+
+	/**
+	 * Build table that maps 8-bit color component to closest level
+	 * for given maximum, already shifted to its bit position.
+	 *
+	 * @param max component maximum value
+	 * @param shift component bit position
+	 * @return table with 256 entries
+	 */
+	static int[] componentTable(int max, int shift) {
+		int[] table = new int[256];
+		for (int i = 0; i < 256; i++) {
+			table[i] = ((i * max + 127) / 255) << shift;
+		}
+		return table;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof PixelFormat)) {
+			return false;
+		}
+		PixelFormat other = (PixelFormat) obj;
+		return bitsPerPixel == other.bitsPerPixel && depth == other.depth
+				&& bigEndian == other.bigEndian && trueColor == other.trueColor
+				&& redMax == other.redMax && greenMax == other.greenMax && blueMax == other.blueMax
+				&& redShift == other.redShift && greenShift == other.greenShift && blueShift == other.blueShift;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = bitsPerPixel;
+		result = 31 * result + depth;
+		result = 31 * result + (bigEndian ? 1 : 0);
+		result = 31 * result + (trueColor ? 1 : 0);
+		result = 31 * result + redMax;
+		result = 31 * result + greenMax;
+		result = 31 * result + blueMax;
+		result = 31 * result + redShift;
+		result = 31 * result + greenShift;
+		result = 31 * result + blueShift;
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return bitsPerPixel + "bpp, depth " + depth
+				+ (bigEndian ? ", big endian" : ", little endian")
+				+ (trueColor ? ", true color" : ", color map")
+				+ ", max " + redMax + "/" + greenMax + "/" + blueMax
+				+ ", shift " + redShift + "/" + greenShift + "/" + blueShift;
+	}
+}
@@ -0,0 +1,71 @@
+package de.dlaube.ratsecast;
+
+/**
+ * Translates captured screen pixels (<I>0x00RRGGBB</I>) into pixel format
+ * that client negotiated. Implementation is chosen once, when pixel format
+ * is set, and then used for every frame buffer update.
+ */
+public interface PixelTranslator {
+
+	/**
+	 * @return pixel format that pixels are translated to
+	 */
+	public PixelFormat getPixelFormat();
+
+	/**
+	 * @return number of bytes that each translated pixel occupies
+	 */
+	public int getBytesPerPixel();
+
+	/**
+	 * Translate single screen pixel.
+	 *
+	 * @param rgbValue pixel in <I>0x00RRGGBB</I> form
+	 * @return pixel value in client pixel format
+	 */
+	public int translate(int rgbValue);
+
+	/**
+	 * Write pixel value, as returned by {@link #translate(int)}, into buffer.
+	 *
+	 * @param pixelValue pixel value in client pixel format
+	 * @param buffer destination buffer
+	 * @param offset position in buffer
+	 * @return position in buffer after written pixel
+	 */
+	public int writePixel(int pixelValue, byte[] buffer, int offset);
+
+	/**
+	 * Translate rectangle of screen pixels and write it into buffer.
+	 * Buffer must have room for <I>width * height * bytesPerPixel</I> bytes.
+	 *
+	 * @param screen screen pixels
+	 * @param offset index of upper left pixel of rectangle
+	 * @param scanline number of pixels in one screen row
+	 * @param width rectangle width
+	 * @param height rectangle height
+	 * @param buffer destination buffer
+	 * @param bufferOffset position in buffer
+	 * @return position in buffer after written pixels
+	 */
+	public int translate(int[] screen, int offset, int scanline, int width, int height, byte[] buffer, int bufferOffset);
+
+	/**
+	 * Choose translator for pixel format.
+	 *
+	 * @param pixelFormat pixel format negotiated with client
+	 * @return translator instance
+	 */
+	public static PixelTranslator create(PixelFormat pixelFormat) {
+		switch (pixelFormat.getBitsPerPixel()) {
+		case 8:
+			return new PixelTranslator8(pixelFormat);
+		case 16:
+			return new PixelTranslator16(pixelFormat);
+		case 32:
+			return new PixelTranslator32(pixelFormat);
+		default:
+			throw new IllegalArgumentException("Unsupported bits per pixel: " + pixelFormat.getBitsPerPixel());
+		}
+	}
+}
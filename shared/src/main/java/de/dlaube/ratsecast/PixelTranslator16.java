@@ -0,0 +1,79 @@
+package de.dlaube.ratsecast;
+
+/**
+ * Translator for 16-bit pixel formats, eg. RGB565 or RGB555.
+ * Each color component is converted with lookup table built from
+ * component maximum and shift.
+ */
+public class PixelTranslator16 implements PixelTranslator {
+
+	private final PixelFormat pixelFormat;
+
+	private final boolean bigEndian;
+
+	private final int[] redTable;
+	private final int[] greenTable;
+	private final int[] blueTable;
+
+	public PixelTranslator16(PixelFormat pixelFormat) {
+		this.pixelFormat = pixelFormat;
+
+		bigEndian = pixelFormat.isBigEndian();
+
+		redTable = PixelFormat.componentTable(pixelFormat.getRedMax(), pixelFormat.getRedShift());
+		greenTable = PixelFormat.componentTable(pixelFormat.getGreenMax(), pixelFormat.getGreenShift());
+		blueTable = PixelFormat.componentTable(pixelFormat.getBlueMax(), pixelFormat.getBlueShift());
+	}
+
+	@Override
+	public PixelFormat getPixelFormat() {
+		return pixelFormat;
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		return 2;
+	}
+
+	@Override
+	public int translate(int rgbValue) {
+		return (redTable[(rgbValue >> 16) & 0xFF] | greenTable[(rgbValue >> 8) & 0xFF] | blueTable[rgbValue & 0xFF]) & 0xFFFF;
+	}
+
+	@Override
+	public int writePixel(int pixelValue, byte[] buffer, int offset) {
+		if (bigEndian) {
+			buffer[offset]     = (byte) (pixelValue >> 8);
+			buffer[offset + 1] = (byte) pixelValue;
+		}
+		else {
+			buffer[offset]     = (byte) pixelValue;
+			buffer[offset + 1] = (byte) (pixelValue >> 8);
+		}
+		return offset + 2;
+	}
+
+	@Override
+	public int translate(int[] screen, int offset, int scanline, int width, int height, byte[] buffer, int bufferOffset) {
+		int pos = bufferOffset;
+		for (int row = 0; row < height; row++) {
+			int index = offset + row * scanline;
+			int end = index + width;
+			if (bigEndian) {
+				while (index < end) {
+					int pixel = translate(screen[index++]);
+					buffer[pos++] = (byte) (pixel >> 8);
+					buffer[pos++] = (byte) pixel;
+				}
+			}
+			else {
+				while (index < end) {
+					int pixel = translate(screen[index++]);
+					buffer[pos++] = (byte) pixel;
+					buffer[pos++] = (byte) (pixel >> 8);
+				}
+			}
+		}
+		return pos;
+	}
+}
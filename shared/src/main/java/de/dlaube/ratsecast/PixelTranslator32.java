@@ -0,0 +1,112 @@
+package de.dlaube.ratsecast;
+
+/**
+ * Translator for 32-bit pixel formats.<BR>
+ * When client uses same layout as captured screen (8 bits per component,
+ * red at bit 16, green at bit 8, blue at bit 0), pixels are only split into
+ * bytes. Otherwise each color component is converted with lookup table.
+ */
+public class PixelTranslator32 implements PixelTranslator {
+
+	private final PixelFormat pixelFormat;
+
+	private final boolean bigEndian;
+	private final boolean screenLayout;
+
+	private final int[] redTable;
+	private final int[] greenTable;
+	private final int[] blueTable;
+
+	public PixelTranslator32(PixelFormat pixelFormat) {
+		this.pixelFormat = pixelFormat;
+
+		bigEndian = pixelFormat.isBigEndian();
+		screenLayout = pixelFormat.isScreenLayout();
+
+		redTable = PixelFormat.componentTable(pixelFormat.getRedMax(), pixelFormat.getRedShift());
+		greenTable = PixelFormat.componentTable(pixelFormat.getGreenMax(), pixelFormat.getGreenShift());
+		blueTable = PixelFormat.componentTable(pixelFormat.getBlueMax(), pixelFormat.getBlueShift());
+	}
+
+	@Override
+	public PixelFormat getPixelFormat() {
+		return pixelFormat;
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		return 4;
+	}
+
+	@Override
+	public int translate(int rgbValue) {
+		if (screenLayout) {
+			return rgbValue & 0x00FFFFFF;
+		}
+		return redTable[(rgbValue >> 16) & 0xFF] | greenTable[(rgbValue >> 8) & 0xFF] | blueTable[rgbValue & 0xFF];
+	}
+
+	@Override
+	public int writePixel(int pixelValue, byte[] buffer, int offset) {
+		if (bigEndian) {
+			buffer[offset]     = (byte) (pixelValue >> 24);
+			buffer[offset + 1] = (byte) (pixelValue >> 16);
+			buffer[offset + 2] = (byte) (pixelValue >> 8);
+			buffer[offset + 3] = (byte) pixelValue;
+		}
+		else {
+			buffer[offset]     = (byte) pixelValue;
+			buffer[offset + 1] = (byte) (pixelValue >> 8);
+			buffer[offset + 2] = (byte) (pixelValue >> 16);
+			buffer[offset + 3] = (byte) (pixelValue >> 24);
+		}
+		return offset + 4;
+	}
+
+	@Override
+	public int translate(int[] screen, int offset, int scanline, int width, int height, byte[] buffer, int bufferOffset) {
+		if (screenLayout) {
+			return copy(screen, offset, scanline, width, height, buffer, bufferOffset);
+		}
+		
+		int pos = bufferOffset;
+		for (int row = 0; row < height; row++) {
+			int index = offset + row * scanline;
+			int end = index + width;
+			while (index < end) {
+				pos = writePixel(translate(screen[index++]), buffer, pos);
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Fast path for pixels that have same layout as screen.
+	 */
+	private int copy(int[] screen, int offset, int scanline, int width, int height, byte[] buffer, int bufferOffset) {
+		int pos = bufferOffset;
+		for (int row = 0; row < height; row++) {
+			int index = offset + row * scanline;
+			int end = index + width;
+			if (bigEndian) {
+				while (index < end) {
+					int pixel = screen[index++];
+					buffer[pos++] = 0;
+					buffer[pos++] = (byte) (pixel >> 16);
+					buffer[pos++] = (byte) (pixel >> 8);
+					buffer[pos++] = (byte) pixel;
+				}
+			}
+			else {
+				while (index < end) {
+					int pixel = screen[index++];
+					buffer[pos++] = (byte) pixel;
+					buffer[pos++] = (byte) (pixel >> 8);
+					buffer[pos++] = (byte) (pixel >> 16);
+					buffer[pos++] = 0;
+				}
+			}
+		}
+		return pos;
+	}
+}
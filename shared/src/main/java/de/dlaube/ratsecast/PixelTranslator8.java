@@ -0,0 +1,69 @@
+package de.dlaube.ratsecast;
+
+/**
+ * Translator for 8-bit pixel formats. Color conversion is done with {@link ColorMap8bit}.
+ */
+public class PixelTranslator8 implements PixelTranslator {
+
+	private final PixelFormat pixelFormat;
+
+	private final ColorMap8bit colorMap;
+
+	public PixelTranslator8(PixelFormat pixelFormat) {
+		this.pixelFormat = pixelFormat;
+
+		if (pixelFormat.isTrueColor()) {
+			colorMap = new ColorMap8bit(
+					pixelFormat.getRedMax(), pixelFormat.getGreenMax(), pixelFormat.getBlueMax(),
+					pixelFormat.getRedShift(), pixelFormat.getGreenShift(), pixelFormat.getBlueShift());
+		}
+		else {
+			/*
+			 * Color map mode, server decides about palette.
+			 */
+			colorMap = new ColorMap8bit();
+		}
+	}
+
+	/**
+	 * @return color map used for conversion, its entries are sent to clients
+	 * that do not use true color mode
+	 */
+	public ColorMap8bit getColorMap() {
+		return colorMap;
+	}
+
+	@Override
+	public PixelFormat getPixelFormat() {
+		return pixelFormat;
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		return 1;
+	}
+
+	@Override
+	public int translate(int rgbValue) {
+		return colorMap.get8bitPixelValue(rgbValue);
+	}
+
+	@Override
+	public int writePixel(int pixelValue, byte[] buffer, int offset) {
+		buffer[offset] = (byte) pixelValue;
+		return offset + 1;
+	}
+
+	@Override
+	public int translate(int[] screen, int offset, int scanline, int width, int height, byte[] buffer, int bufferOffset) {
+		int pos = bufferOffset;
+		for (int row = 0; row < height; row++) {
+			int index = offset + row * scanline;
+			int end = index + width;
+			while (index < end) {
+				buffer[pos++] = (byte) colorMap.get8bitPixelValue(screen[index++]);
+			}
+		}
+		return pos;
+	}
+}
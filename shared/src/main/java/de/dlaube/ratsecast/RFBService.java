@@ -2,23 +2,36 @@ package de.dlaube.ratsecast;
 
 import java.awt.*;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * Remote Frame Buffer Runnable instance for each client connection.<BR>
  * When a VNC viewer opens a connection, a new instance of this class
  * is created.<BR>
+ * Session is either run in its own thread on blocking socket, platform or virtual one, see {@link #run()},
+ * or driven by {@link NioServer} on non-blocking channel, see {@link #processInput()}.<BR>
  * RFB protocol implemented here follows pdf document at:<BR>
  * <A HREF="https://www.realvnc.com/docs/rfbproto.pdf">https://www.realvnc.com/docs/rfbproto.pdf</A><BR>
  * <BR>
- * Current implementation supports only raw encoding and desktop size pseudo encoding. Authentication is disabled.
- * Supported pixel formats are: 8-bit and 32-bit RGB full color.
+ * Current implementation supports raw, CopyRect, RRE, CoRRE, Hextile, Zlib, TRLE, ZRLE and Tight encoding, desktop size,
+ * compression level and quality level pseudo encodings.
+ * Encoding is chosen by client preference, see {@link #readSetEncoding()}. Authentication is disabled.
+ * Supported pixel formats are: 8, 16 and 32 bits per pixel, both big and little endian.
  * 
  * @author igor.delac@gmail.com
  *
@@ -28,41 +41,198 @@ public class RFBService implements Runnable {
 	private final byte[] RFB_VER = "RFB 003.003\n".getBytes();
 	private final byte[] SECURITY_TYPE = {0x00, 0x00, 0x00, 0x01};
 
+	/**
+	 * Pixel data of large rectangles is written on socket in chunks of this size.
+	 */
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * How long to wait, in milliseconds, before screen is checked again
+	 * when incremental update is requested and nothing has changed.
+	 */
+	private static final long UPDATE_POLL_INTERVAL = 50;
+
+	/**
+	 * Unsent changed areas are merged into one when there are more of them.
+	 */
+	private static final int MAX_UNSENT_DAMAGE = 64;
+
+	private static final int ENCODING_RAW = 0;
+	private static final int ENCODING_COPY_RECT = 1;
+	private static final int ENCODING_RRE = 2;
+	private static final int ENCODING_CORRE = 4;
+	private static final int ENCODING_HEXTILE = 5;
+	private static final int ENCODING_ZLIB = 6;
+	private static final int ENCODING_TIGHT = 7;
+	private static final int ENCODING_TRLE = 15;
+	private static final int ENCODING_ZRLE = 16;
+
+	/**
+	 * Compression level pseudo encodings, for levels 0 to 9.
+	 */
+	private static final int ENCODING_COMPRESS_LEVEL_0 = -256;
+	private static final int ENCODING_COMPRESS_LEVEL_9 = -247;
+
+	/**
+	 * Quality level pseudo encodings, for levels 0 to 9.
+	 */
+	private static final int ENCODING_QUALITY_LEVEL_0 = -32;
+	private static final int ENCODING_QUALITY_LEVEL_9 = -23;
+
+	/**
+	 * Compression level used when client does not request one.
+	 */
+	private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+	/**
+	 * Handshake state of session driven by {@link #processInput()}.
+	 */
+	private static final int STATE_VERSION = 0;
+	private static final int STATE_SHARED_FLAG = 1;
+	private static final int STATE_MESSAGES = 2;
+
 	private Socket clientSocket;
 
-	private BufferedInputStream in;
-	private BufferedOutputStream out;
-	
-
-	private byte bits_per_pixel = 0;
-	private byte depth = 0;
-	private byte big_endian = 0;
-	private byte true_color = 0;
-	private int red_maximum = 0;
-	private int green_maximum = 0;
-	private int blue_maximum = 0;
-	private byte red_shift = 0;
-	private byte green_shift = 0;
-	private byte blue_shift = 0;
-	private ColorMap8bit colorMap;
+	private InputStream in;
+	private OutputStream out;
+	private ThroughputMeter throughputMeter;
+	private int state;
+	
+
+	private PixelFormat pixelFormat;
+	private PixelTranslator pixelTranslator;
+	private MessageBuffer message;
+	private byte[] inBuffer;
 	private List<Integer> supportedEncoding;
+	private Encoder encoder;
+	private Encoder rawEncoder;
+	private Map<Integer, Encoder> encoders;
+	private int compressionLevel;
+	private int qualityLevel;
+	private boolean adaptiveEncoding;
 	public int screenWidth, screenHeight;
 	public boolean incrementalFrameBufferUpdate;
+	
+	/**
+	 * Button mask and position of last pointer event.
+	 */
+	private int pointerButtonMask;
+	private int pointerX = -1, pointerY = -1;
+
+	private DamageTracker damageTracker;
+	private TileClassifier tileClassifier;
+	
+	/**
+	 * Changed areas of screen that client does not have yet, because they were
+	 * outside of requested area. Damage tracker compares each frame with previous
+	 * one, so client has previous frame everywhere except in these areas.
+	 */
+	private final List<Rectangle> unsentDamage = new ArrayList<Rectangle>();
+	
+	/**
+	 * Update requests that writer answers. Rectangles are owned by session
+	 * and reused for each request.
+	 */
+	private final Rectangle updateRequest = new Rectangle();
+	private final Rectangle fullUpdateRequest = new Rectangle();
+	private boolean incrementalRequested;
+	private boolean fullRequested;
+	
+	/**
+	 * Guards messages that reader thread passes to writer thread. Reader only
+	 * records them, writer applies them before it sends next update, and
+	 * encodes and writes update without holding lock.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition updateRequested = lock.newCondition();
+	private final Rectangle pendingUpdateRequest = new Rectangle();
+	private final Rectangle pendingFullUpdateRequest = new Rectangle();
+	private boolean incrementalPending;
+	private boolean fullPending;
+	private PixelFormat pendingPixelFormat;
+	private List<Integer> pendingEncodings;
+	private boolean closed;
+	private ThreadFactory writerThreadFactory = runnable -> new Thread(runnable, "RFBService writer");
 
 	private NativeInterface nativeInterface;
+	private InputDispatcher inputDispatcher;
+	private CaptureScheduler captureScheduler;
+	private EncodedTileCache encodedTileCache;
+	
+	/**
+	 * Buffer where rectangles are encoded before they are added to encoded tile cache.
+	 */
+	private MessageBuffer cacheBuffer;
+	
+	/**
+	 * Sequence number of last frame that was compared with damage tracker.
+	 */
+	private long frameSequence;
 
 	public RFBService(Socket clientSocket, NativeInterface nativeInterface) throws IOException {
+		this(clientSocket, nativeInterface, null);
+	}
+
+	/**
+	 * @param clientSocket client connection
+	 * @param nativeInterface interface for input events and screen capture
+	 * @param captureScheduler scheduler that captures screen for all sessions,
+	 * or null if this session should capture screen on its own
+	 * @throws IOException
+	 */
+	public RFBService(Socket clientSocket, NativeInterface nativeInterface, CaptureScheduler captureScheduler) throws IOException {
 		this.clientSocket = clientSocket;
+		this.throughputMeter = new ThroughputMeter(clientSocket.getOutputStream());
+		
+		/*
+		 * Output is not wrapped in BufferedOutputStream, message buffer already
+		 * collects data in large chunks. Socket write then holds no monitor, and
+		 * session on virtual thread does not pin its carrier thread while it blocks.
+		 */
+		init(new BufferedInputStream(clientSocket.getInputStream()), throughputMeter, 
+				nativeInterface, captureScheduler);
+	}
+
+	/**
+	 * Session on streams of non-blocking channel. Input stream must support mark,
+	 * and session reads from it only complete messages, see {@link #processInput()}.
+	 * 
+	 * @param in input stream with data received from client
+	 * @param out output stream where data for client is queued
+	 * @param nativeInterface interface for input events and screen capture
+	 * @param captureScheduler scheduler that captures screen for all sessions,
+	 * or null if this session should capture screen on its own
+	 */
+	public RFBService(InputStream in, OutputStream out, NativeInterface nativeInterface, CaptureScheduler captureScheduler) {
+		init(in, out, nativeInterface, captureScheduler);
+	}
 
-		this.in = new BufferedInputStream(clientSocket.getInputStream());
-		this.out = new BufferedOutputStream(clientSocket.getOutputStream());
+	private void init(InputStream in, OutputStream out, NativeInterface nativeInterface, CaptureScheduler captureScheduler) {
+		this.in = in;
+		this.out = out;
 
 		incrementalFrameBufferUpdate = false;
+		damageTracker = new DamageTracker();
+		tileClassifier = new TileClassifier(damageTracker.getTileSize());
 
-		colorMap = new ColorMap8bit();
+		message = new MessageBuffer(64 * 1024, out, CHUNK_SIZE);
+		inBuffer = new byte[64];
 		supportedEncoding = new ArrayList<Integer>();
+		rawEncoder = new RawEncoder();
+		encoder = rawEncoder;
+		encoders = new HashMap<Integer, Encoder>();
+		compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+		qualityLevel = -1;
 
 		this.nativeInterface = nativeInterface;
+		if (nativeInterface instanceof InputDispatcher) {
+			inputDispatcher = (InputDispatcher) nativeInterface;
+		}
+		this.captureScheduler = captureScheduler;
+		if (captureScheduler != null) {
+			encodedTileCache = captureScheduler.getEncodedTileCache();
+			cacheBuffer = new MessageBuffer(64 * 1024);
+		}
 	}
 	
 	/**
@@ -85,8 +255,8 @@ public class RFBService implements Runnable {
 	 * @throws IOException
 	 */
 	private String readProtocolVersion() throws IOException {
-		byte[] buffer = readU8Array(12);
-		return new String(buffer);
+		readMessage(12);
+		return new String(inBuffer, 0, 12);
 	}
 	
 	/**
@@ -130,7 +300,7 @@ public class RFBService implements Runnable {
 		writeU16int(width);
 		writeU16int(height);
 		
-		byte bits_per_pixel = (byte) Toolkit.getDefaultToolkit().getColorModel().getPixelSize();
+		byte bits_per_pixel = (byte) nativeInterface.getPixelSize();
 		byte depth = bits_per_pixel;
 		byte big_endian = 0;
 		byte true_color = 1;
@@ -169,50 +339,57 @@ public class RFBService implements Runnable {
 				blue_shift, // blue-shift
 				0, 0, 0 // padding
 				};		
-		out.write(pixel_format);
+		message.write(pixel_format);
+
+		/*
+		 * Until client sends SetPixelFormat message, pixels are sent
+		 * in format that server announced.
+		 */
+		setPixelFormat(new PixelFormat(bits_per_pixel, depth, big_endian != 0, true_color != 0,
+				red_max & 0xFF, green_max & 0xFF, blue_max & 0xFF,
+				red_shift, green_shift, blue_shift));
 
 		if (windowTitle.length() > 255) {
 			windowTitle = windowTitle.substring(0, 255);
 		}
 
-		byte[] titleLen = {0, 0, 0, (byte) windowTitle.length()};
-		out.write(titleLen);
-		out.write(windowTitle.getBytes());			
+		byte[] title = windowTitle.getBytes();
+		writeS32int(title.length);
+		message.write(title);
 
-		out.flush();
+		flushMessage();
 	}
 	
 	/**
 	 * Read pixel format message sent from client.
 	 * Here the most important is value of bits per pixel. Client may ask to
-	 * send frame buffers with lower color value (eg. 8-bits). Other
-	 * parameters are ignored.
+	 * send frame buffers with lower color value (eg. 8-bits). Pixel translator
+	 * is chosen according to bits per pixel, endianness, maximum values and shifts.
+	 * Pixel format is used from next frame buffer update on, see {@link #applyPixelFormat(PixelFormat)}.
 	 * 
 	 * @throws IOException
 	 */
 	private void readSetPixelFormat() throws IOException {
 
-		byte[] header = readU8Array(4);
+		/*
+		 * Message type, 3 bytes padding, 16 bytes of pixel format.
+		 */
+		readMessage(20);
 		
-		if (header[0] != 0x00) {
+		if (inBuffer[0] != 0x00) {
 			throw new IOException();
 		}
 		
-		bits_per_pixel = (byte) in.read();
-		depth = (byte) in.read();
-		big_endian = (byte) in.read();
-		true_color = (byte) in.read();
-		red_maximum = readU16int();
-		green_maximum = readU16int();
-		blue_maximum = readU16int();
-		red_shift = (byte) in.read();
-		green_shift = (byte) in.read();
-		blue_shift = (byte) in.read();
-		
-		byte[] padding = new byte[3];
-		if (in.read(padding) < 3) {
-			throw new IOException();
-		}
+		int bits_per_pixel = getU8(4);
+		int depth = getU8(5);
+		int big_endian = getU8(6);
+		int true_color = getU8(7);
+		int red_maximum = getU16(8);
+		int green_maximum = getU16(10);
+		int blue_maximum = getU16(12);
+		int red_shift = getU8(14);
+		int green_shift = getU8(15);
+		int blue_shift = getU8(16);
 		
 		log ("Bits per pixel: " + bits_per_pixel);
 		log ("Depth: " + depth);
@@ -221,27 +398,121 @@ public class RFBService implements Runnable {
 		log ("Red, green, blue max. : " + red_maximum + ", " + green_maximum + ", " + blue_maximum);
 		log ("Red, green, blue shift: " + red_shift + ", " + green_shift + ", " + blue_shift);
 
+		if (bits_per_pixel != 8 && bits_per_pixel != 16 && bits_per_pixel != 32) {
+			throw new IOException("Unsupported bits per pixel: " + bits_per_pixel);
+		}
+		
+		PixelFormat requested = new PixelFormat(bits_per_pixel, depth, big_endian != 0, true_color != 0,
+				red_maximum, green_maximum, blue_maximum,
+				red_shift, green_shift, blue_shift);
+		
+		lock.lock();
+		try {
+			pendingPixelFormat = requested;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Use pixel format that client asked for, and send color map
+	 * when client uses color map mode.
+	 * 
+	 * @param requested pixel format sent by client
+	 * @throws IOException
+	 */
+	private void applyPixelFormat(PixelFormat requested) throws IOException {
+		
+		setPixelFormat(requested);
+
+		if (pixelTranslator instanceof PixelTranslator8 && !pixelFormat.isTrueColor()) {
+			/*
+			 * Client uses color map mode, it expects server to
+			 * tell which color is behind each pixel value.
+			 */
+			sendSetColourMapEntries(((PixelTranslator8) pixelTranslator).getColorMap());
+		}
+
+	}
+
+	/**
+	 * Use pixel format for all following frame buffer updates.
+	 * 
+	 * @param pixelFormat pixel format
+	 */
+	private void setPixelFormat(PixelFormat pixelFormat) {
+		this.pixelFormat = pixelFormat;
+		this.pixelTranslator = PixelTranslator.create(pixelFormat);
+	}
+
+	/**
+	 * Send all 256 entries of color map to client. This is needed only
+	 * when client does not use true color mode.
+	 * 
+	 * @param colorMap color map that is used for pixel values
+	 * @throws IOException
+	 */
+	private void sendSetColourMapEntries(ColorMap8bit colorMap) throws IOException {
+		
+		byte messageType = 0x01;
+		byte padding     = 0x00;
+		
+		message.writeU8(messageType);
+		message.writeU8(padding);
+		
+		int firstColour = 0;
+		int numberOfColours = 256;
+		
+		writeU16int(firstColour);
+		writeU16int(numberOfColours);
+		
+		for (int i = 0; i < numberOfColours; i++) {
+			int rgbValue = colorMap.getRGB(i);
+			
+			/*
+			 * Color values are 16-bit, scale 8-bit value to full range.
+			 */
+			writeU16int(((rgbValue >> 16) & 0xFF) * 257);
+			writeU16int(((rgbValue >> 8) & 0xFF) * 257);
+			writeU16int((rgbValue & 0xFF) * 257);
+		}
+		
+		flushMessage();
 	}
 
 	/**
 	 * Populate list of supported encodings that VNC viewer supports.
 	 * This list is for example used when screen size change (eg. JFrame change it's size)
-	 * and clients who support desktop size pseudo encoding can be informed about it.
+	 * and clients who support desktop size pseudo encoding can be informed about it.<BR>
+	 * Client lists encodings in order of preference, first one that server
+	 * implements is used for frame buffer updates. When client lists more
+	 * encodings that server implements, encoding is chosen for each tile
+	 * by its content, see {@link #chooseEncoder(int[], int, Rectangle)}.
 	 * 
 	 * @throws IOException
 	 */
 	private void readSetEncoding() throws IOException {
 		
-		int messageType = in.read();
-		int padding = in.read();
+		readMessage(4);
+		
+		int messageType = getU8(0);
+		int padding = getU8(1);
 		
 		if (messageType == 0x02) {
 			
-			int numberOfEncodings = readU16int();
-			while (numberOfEncodings > 0) {
-				int encoding = readU32int();
-				supportedEncoding.add(encoding);
-				numberOfEncodings--;
+			int numberOfEncodings = getU16(2);
+			readMessage(numberOfEncodings * 4);
+			
+			List<Integer> requested = new ArrayList<Integer>(numberOfEncodings);
+			for (int i = 0; i < numberOfEncodings; i++) {
+				requested.add(getS32(i * 4));
+			}
+			
+			lock.lock();
+			try {
+				pendingEncodings = requested;
+			} finally {
+				lock.unlock();
 			}
 			
 		}
@@ -253,6 +524,132 @@ public class RFBService implements Runnable {
 
 	}
 
+	/**
+	 * Use encodings that client listed, from next frame buffer update on.
+	 * 
+	 * @param requested encodings in order of client preference
+	 */
+	private void applyEncodings(List<Integer> requested) {
+		
+		supportedEncoding.clear();
+		supportedEncoding.addAll(requested);
+		compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+		qualityLevel = -1;
+		for (int encoding : supportedEncoding) {
+			if (encoding >= ENCODING_COMPRESS_LEVEL_0 && encoding <= ENCODING_COMPRESS_LEVEL_9) {
+				compressionLevel = encoding - ENCODING_COMPRESS_LEVEL_0;
+			}
+			else if (encoding >= ENCODING_QUALITY_LEVEL_0 && encoding <= ENCODING_QUALITY_LEVEL_9) {
+				qualityLevel = encoding - ENCODING_QUALITY_LEVEL_0;
+			}
+		}
+		
+		encoder = null;
+		int implemented = 0;
+		for (int encoding : supportedEncoding) {
+			Encoder created = createEncoder(encoding);
+			if (created != null) {
+				implemented++;
+				if (encoder == null) {
+					encoder = created;
+				}
+			}
+		}
+		if (encoder == null) {
+			encoder = rawEncoder;
+		}
+		adaptiveEncoding = implemented > 1;
+		
+		for (Encoder existing : encoders.values()) {
+			existing.setCompressionLevel(compressionLevel);
+			existing.setQualityLevel(qualityLevel);
+		}
+		
+		log ("Encoding: " + encoder.getEncodingType() + ", compression level: " + compressionLevel
+				+ ", quality level: " + qualityLevel + ", adaptive: " + adaptiveEncoding);
+	}
+
+	/**
+	 * Release encoders of session when connection ends. Zlib streams
+	 * hold native memory until they are ended.
+	 */
+	public void close() {
+		for (Encoder existing : encoders.values()) {
+			existing.close();
+		}
+		encoders.clear();
+	}
+
+	/**
+	 * Get encoder for encoding type. Encoder is created once and kept for
+	 * complete connection, because zlib streams of some encodings must
+	 * continue when client sends encodings again.
+	 * 
+	 * @param encodingType encoding type, see RFB protocol spec.
+	 * @return encoder, or null if server does not implement encoding
+	 */
+	private Encoder createEncoder(int encodingType) {
+		Encoder existing = encoders.get(encodingType);
+		if (existing != null) {
+			return existing;
+		}
+		
+		Encoder created;
+		switch (encodingType) {
+		case ENCODING_RAW:
+			return rawEncoder;
+		case ENCODING_RRE:
+			created = new RreEncoder();
+			break;
+		case ENCODING_CORRE:
+			created = new CorreEncoder();
+			break;
+		case ENCODING_HEXTILE:
+			created = new HextileEncoder();
+			break;
+		case ENCODING_ZLIB:
+			created = new ZlibEncoder(compressionLevel, throughputMeter);
+			break;
+		case ENCODING_TIGHT:
+			created = new TightEncoder();
+			break;
+		case ENCODING_TRLE:
+			created = new TrleEncoder();
+			break;
+		case ENCODING_ZRLE:
+			created = new ZrleEncoder();
+			break;
+		default:
+			return null;
+		}
+		created.setCompressionLevel(compressionLevel);
+		created.setQualityLevel(qualityLevel);
+		encoders.put(encodingType, created);
+		return created;
+	}
+
+	/**
+	 * Choose encoder for tile by its content, among encodings
+	 * that client supports.
+	 * 
+	 * @param frame screen pixels
+	 * @param frameWidth screen width in pixels
+	 * @param tile tile area, must not cross tile boundary
+	 * @return encoder for tile
+	 */
+	private Encoder chooseEncoder(int[] frame, int frameWidth, Rectangle tile) {
+		int tileClass = tileClassifier.classify(frame, frameWidth, tile);
+		for (int encodingType : TileClassifier.getPreferredEncodings(tileClass, qualityLevel >= 0)) {
+			if (supportedEncoding.contains(encodingType)) {
+				Encoder chosen = createEncoder(encodingType);
+				if (chosen != null) {
+					return chosen;
+				}
+			}
+		}
+		return encoder;
+	}
+
 	/**
 	 * Read key event that is sent from client.
 	 * Keystroke is then send to system just like the user hit the key.
@@ -261,7 +658,9 @@ public class RFBService implements Runnable {
 	 */
 	private void readKeyEvent() throws IOException {
 		
-		int messageType = in.read();
+		readMessage(8);
+		
+		int messageType = getU8(0);
 		if (messageType != 0x04) {
 			throw new IOException();
 		}
@@ -270,26 +669,30 @@ public class RFBService implements Runnable {
 		 * Down flag:
 		 *  0 -  user released key.
 		 *  1 -  user press key.
+		 * Followed by 2 bytes of padding.
 		 */
-		boolean downFlag = in.read() == 1;
-		
-		@SuppressWarnings("unused")
-		int padding = readU16int();
+		boolean downFlag = getU8(1) == 1;
 		
-		int keyValue = readU32int();		
+		int keyValue = getS32(4);
 
 		nativeInterface.keyDown(keyValue, downFlag);
+		expectChange();
 	}
 	
 	/**
 	 * Read pointer event data. This happens when
-	 * user moves mouse in VNC viewer, clicks, etc.
+	 * user moves mouse in VNC viewer, clicks, etc.<BR>
+	 * Client sends state of all buttons with each event. Button mask is compared
+	 * with mask of previous event, and only buttons that changed state are pressed
+	 * or released, so drag is one press, pointer moves and one release.
 	 * 
 	 * @throws IOException
 	 */
 	private void readPointerEvent() throws IOException {
 		
-		int messageType = in.read();
+		readMessage(6);
+		
+		int messageType = getU8(0);
 		if (messageType != 0x05) {
 			throw new IOException();
 		}
@@ -302,57 +705,57 @@ public class RFBService implements Runnable {
 		 * 8 - wheel up
 		 * 16 - wheel down
 		 */
-		int buttonMask = in.read();
+		int buttonMask = getU8(1);
 		
-		int x_pos = readU16int();
-		int y_pos = readU16int();
-
-		if (buttonMask > 0) {
-
-
-				/*
-				 * Check for button and generate mouse click.
-				 */
-				if (buttonMask == 1) {
-					/*
-					 * Left click.
-					 */
-					nativeInterface.mouseButton(0, true, x_pos, y_pos);
-					nativeInterface.mouseButton(0, false, x_pos, y_pos);
-				}
-				else if (buttonMask == 3) {
-					/*
-					 * Middle click.
-					 */
-					nativeInterface.mouseButton(2, true, x_pos, y_pos);
-					nativeInterface.mouseButton(2, false, x_pos, y_pos);
-				}
-				else if (buttonMask == 4) {
-					/*
-					 * Right click.
-					 */
-					nativeInterface.mouseButton(1, true, x_pos, y_pos);
-					nativeInterface.mouseButton(1, false, x_pos, y_pos);
-				}
-				else if (buttonMask == 8) {
-					/*
-					 * Mouse wheel.
-					 */
-					nativeInterface.mouseWheel(false);
-				}
-				else if (buttonMask == 16) {
-					/*
-					 * Mouse wheel.
-					 */
-					nativeInterface.mouseWheel(true);
-				}
-			
+		int x_pos = getU16(2);
+		int y_pos = getU16(4);
+		
+		int changed = buttonMask ^ pointerButtonMask;
+		boolean moved = x_pos != pointerX || y_pos != pointerY;
+		pointerButtonMask = buttonMask;
+		pointerX = x_pos;
+		pointerY = y_pos;
+		
+		/*
+		 * Button press or release moves pointer too, so pointer is
+		 * moved on its own only when no button changed state.
+		 */
+		if (moved && (changed & 0x07) == 0) {
+			nativeInterface.mouseMove(x_pos, y_pos);
 		}
-		else {
+		
+		if ((changed & 0x01) != 0) {
 			/*
-			 * Move mouse pointer only.
+			 * Left button.
 			 */
-			nativeInterface.mouseMove(x_pos, y_pos);
+			nativeInterface.mouseButton(0, (buttonMask & 0x01) != 0, x_pos, y_pos);
+		}
+		if ((changed & 0x02) != 0) {
+			/*
+			 * Middle button.
+			 */
+			nativeInterface.mouseButton(2, (buttonMask & 0x02) != 0, x_pos, y_pos);
+		}
+		if ((changed & 0x04) != 0) {
+			/*
+			 * Right button.
+			 */
+			nativeInterface.mouseButton(1, (buttonMask & 0x04) != 0, x_pos, y_pos);
+		}
+		
+		/*
+		 * Client presses and releases wheel button for each wheel step,
+		 * step is made on press.
+		 */
+		if ((changed & buttonMask & 0x08) != 0) {
+			nativeInterface.mouseWheel(false);
+		}
+		if ((changed & buttonMask & 0x10) != 0) {
+			nativeInterface.mouseWheel(true);
+		}
+		
+		if (changed != 0) {
+			expectChange();
 		}
 		
 	}
@@ -368,16 +771,16 @@ public class RFBService implements Runnable {
 	 */
 	private void readClientCutText() throws IOException {
 		
-		byte[] header = readU8Array(4);
-		int textLen = readU32int();
+		readMessage(8);
+		int textLen = getS32(4);
 
-		if ( header[0] == 0x06 ) {
+		if ( inBuffer[0] == 0x06 && textLen >= 0 ) {
 			
 			/*
 			 * Read bytes that are encoded as Latin-1 characters.
 			 */
-			byte[] textBuffer = readU8Array(textLen);
-		    String textLine = new String(textBuffer);
+			readMessage(textLen);
+		    String textLine = new String(inBuffer, 0, textLen, StandardCharsets.ISO_8859_1);
 		    
 		    /*
 		     * Transfer to system clipboard.
@@ -396,23 +799,25 @@ public class RFBService implements Runnable {
 	/**
 	 * Reads frame buffer update request.<BR>
 	 * Two types are possible: <I>full</I> and <I>incremental</I>
-	 * Full request will immediately trigger sending of complete screen to
-	 * client, while incremental will let GUI/Swing components to decide when to
-	 * send update to clients.
+	 * Full request is answered with complete screen, while incremental request
+	 * is answered with changed tiles once screen changes. Both are only remembered
+	 * here, and answered by {@link #sendPendingUpdate()}.
 	 * 
 	 * @throws IOException
 	 */
 	private void readFrameBufferUpdateRequest() throws IOException {
 		
-		int messageType = in.read();
-		int incremental = in.read();
+		readMessage(10);
+		
+		int messageType = getU8(0);
+		int incremental = getU8(1);
 		
 		if (messageType == 0x03) {
 			
-			int x_pos = readU16int(); 
-			int y_pos = readU16int();
-			int width = readU16int();
-			int height = readU16int();
+			int x_pos = getU16(2); 
+			int y_pos = getU16(4);
+			int width = getU16(6);
+			int height = getU16(8);
 
 			screenWidth  = width;
 			screenHeight = height;
@@ -422,14 +827,28 @@ public class RFBService implements Runnable {
 				log ("Frame buffer update request received. Full update requested.");
 				
 				incrementalFrameBufferUpdate = false;
-				
-				sendFrameBufferUpdate(x_pos, y_pos, width, height, 0, nativeInterface.getImageBuffer(x_pos, y_pos, width, height));
-				
+				lock.lock();
+				try {
+					incrementalPending = false;
+					fullPending = true;
+					pendingFullUpdateRequest.setBounds(x_pos, y_pos, width, height);
+					updateRequested.signalAll();
+				} finally {
+					lock.unlock();
+				}
 				
 			}
 			else if (incremental == 0x01) {
 				
 				incrementalFrameBufferUpdate = true;
+				lock.lock();
+				try {
+					incrementalPending = true;
+					pendingUpdateRequest.setBounds(x_pos, y_pos, width, height);
+					updateRequested.signalAll();
+				} finally {
+					lock.unlock();
+				}
 				
 			}
 			else {
@@ -466,8 +885,8 @@ public class RFBService implements Runnable {
 		byte messageType = 0x00;
 		byte padding     = 0x00;
 		
-		out.write(messageType);
-		out.write(padding);
+		message.writeU8(messageType);
+		message.writeU8(padding);
 		
 		int numberOfRectangles = 1;
 		
@@ -481,92 +900,800 @@ public class RFBService implements Runnable {
 
 		log ("Framebuffer update at (" + x + ", " + y + "). Rectangle: " + width + "x" + height + 
 				", encoding: " + encodingType + ", incremental: " + incrementalFrameBufferUpdate +
-				", bits per pixel: " + bits_per_pixel);
+				", bits per pixel: " + pixelFormat.getBitsPerPixel());
 
-		writeBuffer(screen);
-		out.flush();
+		rawEncoder.encode(screen, width, new Rectangle(0, 0, width, height), pixelTranslator, message);
+		flushMessage();
 	}
 	
 	/**
-	 * Sends two rectangles in frame buffer update, first is screen with old dimensions,
-	 * and second is desktop size pseudo encoding rectangle.
-	 *  
+	 * Send frame buffer update with several rectangles to client.
+	 * All rectangles are taken from same frame and sent with encoding that client prefers,
+	 * or with encoding chosen for each tile when client supports several encodings.
+	 * Optional CopyRect rectangle is sent first, so its source area is still
+	 * unchanged on client side when it is copied.<BR>
+	 * Rectangles of stateless encoders are taken from encoded tile cache that
+	 * is shared with other sessions, when screen is captured by capture scheduler.
+	 * 
+	 * @param copyRect moved block, or null
+	 * @param rectangles rectangles to send, must lie within frame
+	 * @param screenFrame frame which holds complete screen
 	 * @throws IOException
 	 */
-	public void sendDesktopSize() throws IOException
-	{
+	private void sendFrameBufferUpdate(CopyRect copyRect, List<Rectangle> rectangles, ScreenFrame screenFrame) throws IOException {
 		
-		if (supportedEncoding.contains(-223)) {
-
-			int x = 0;
-			int y = 0;
-
-			int screenWidth = nativeInterface.getScreenWidth();
-			int screenHeight = nativeInterface.getScreenHeight();
-
-			int encodingType = 0;
-					
-			byte messageType = 0x00;
-			byte padding     = 0x00;
-			
-			out.write(messageType);
-			out.write(padding);
-			
-			int numberOfRectangles = 2;
-			
-			writeU16int(numberOfRectangles);	
+		int[] frame = screenFrame.getPixels();
+		int frameWidth = screenFrame.getWidth();
 		
-			
-			encodingType = 0;
-			
-			writeU16int(x);
-			writeU16int(y);
-			writeU16int(screenWidth);
-			writeU16int(screenHeight);
-			writeS32int(encodingType);
-
-			writeBuffer(nativeInterface.getImageBuffer(x, y, screenWidth, screenHeight));
-
-			encodingType = -223;
-			
-			writeU16int(x);
-			writeU16int(y);
-			writeU16int(screenWidth);
-			writeU16int(screenHeight);
-			writeS32int(encodingType);
-			
-			out.flush();
-			
-			log ("New screen size: " + screenWidth + " x " + screenHeight);
-			
+		byte messageType = 0x00;
+		byte padding     = 0x00;
+		
+		message.writeU8(messageType);
+		message.writeU8(padding);
+		
+		/*
+		 * Some encodings limit rectangle size, so rectangles
+		 * are split before their number is known.
+		 */
+		List<Rectangle> encoded = new ArrayList<Rectangle>();
+		List<Encoder> encodedWith = new ArrayList<Encoder>();
+		for (Rectangle rect : rectangles) {
+			if (adaptiveEncoding) {
+				addClassifiedTiles(rect, frame, frameWidth, encoded, encodedWith);
+			}
+			else {
+				encoder.split(rect, encoded);
+				while (encodedWith.size() < encoded.size()) {
+					encodedWith.add(encoder);
+				}
+			}
 		}
-		else {
-			err ("Client does not support DesktopSize pseudo encoding.");
+		
+		writeU16int(encoded.size() + (copyRect != null ? 1 : 0));
+		
+		if (copyRect != null) {
+			Rectangle rect = copyRect.getDestination();
+			writeU16int(rect.x);
+			writeU16int(rect.y);
+			writeU16int(rect.width);
+			writeU16int(rect.height);
+			writeS32int(ENCODING_COPY_RECT);
+			
+			writeU16int(copyRect.getSrcX());
+			writeU16int(copyRect.getSrcY());
 		}
-	}
-
-	private void writeBuffer(int[] screen) throws IOException {
-		for (int rgbValue : screen) {
-
-			int red   = (rgbValue & 0x000000FF);
-			int green = (rgbValue & 0x0000FF00) >> 8;
-			int blue  = (rgbValue & 0x00FF0000) >> 16;
-
-			if (bits_per_pixel == 8) {
-				out.write((byte) colorMap.get8bitPixelValue(red, green, blue));
+		
+		for (int i = 0; i < encoded.size(); i++) {
+			Rectangle rect = encoded.get(i);
+			Encoder rectEncoder = encodedWith.get(i);
+			writeU16int(rect.x);
+			writeU16int(rect.y);
+			writeU16int(rect.width);
+			writeU16int(rect.height);
+			writeS32int(rectEncoder.getEncodingType());
+			
+			if (encodedTileCache != null && rectEncoder.isStateless()) {
+				encodedTileCache.write(screenFrame, rect, rectEncoder, pixelTranslator, cacheBuffer, message);
 			}
 			else {
-				out.write(red);
-				out.write(green);
-				out.write(blue);
-				out.write(0);
+				rectEncoder.encode(frame, frameWidth, rect, pixelTranslator, message);
 			}
 		}
-	}
-
-	@Override
-	public void run() {
 		
+		flushMessage();
+	}
+	
+	/**
+	 * Answer pending frame buffer update request.
+	 * Full request is answered with complete requested area of latest frame.
+	 * For incremental request, latest frame is compared with frame that client already has.
+	 * If any tile inside requested area changed, changed tiles are sent.<BR>
+	 * Changes outside of requested area are kept, and sent with later update
+	 * whose request covers them.<BR>
+	 * When client supports CopyRect encoding, changed area is checked for
+	 * moved block (scrolling, window move). Tiles that are completely covered
+	 * by moved block are then not sent at all.
+	 * 
+	 * @return true if update was sent, false if nothing changed
+	 * @throws IOException
+	 */
+	public boolean sendPendingUpdate() throws IOException {
+		
+		takePendingMessages();
+		
+		if (fullRequested) {
+			return sendFullUpdate();
+		}
+		if (!incrementalRequested) {
+			return false;
+		}
+		
+		ScreenFrame screenFrame = captureFrame();
+		if (screenFrame == null) {
+			requestFrame();
+			return false;
+		}
+		boolean newFrame = screenFrame.getSequence() != frameSequence;
+		if (!newFrame && !intersectsAny(updateRequest, unsentDamage)) {
+			requestFrame();
+			return false;
+		}
+		frameSequence = screenFrame.getSequence();
+		
+		int frameWidth = screenFrame.getWidth();
+		int frameHeight = screenFrame.getHeight();
+		int[] frame = screenFrame.getPixels();
+		
+		int[] previousFrame = damageTracker.getPreviousFrame();
+		List<Rectangle> damage = new ArrayList<Rectangle>();
+		Rectangle dirtyBounds = null;
+		if (newFrame) {
+			damage = damageTracker.update(frame, frameWidth, frameHeight, 
+					screenFrame.getTileHashes(damageTracker.getTileSize()));
+			tileClassifier.recordDamage(damage, frameWidth, frameHeight);
+			dirtyBounds = damageTracker.getDirtyBounds();
+		}
+		
+		CopyRect copyRect = null;
+		if (supportedEncoding.contains(ENCODING_COPY_RECT) && dirtyBounds != null
+				&& previousFrame != null && previousFrame.length == frame.length) {
+			Rectangle area = dirtyBounds.intersection(updateRequest);
+			if (!area.isEmpty()) {
+				copyRect = MotionDetector.detect(previousFrame, frame, frameWidth, area);
+			}
+			
+			/*
+			 * Block can be copied only from area where client has previous frame.
+			 */
+			if (copyRect != null && intersectsAny(copyRect.getSource(), unsentDamage)) {
+				copyRect = null;
+			}
+		}
+		
+		List<Rectangle> changedAreas = new ArrayList<Rectangle>(unsentDamage);
+		changedAreas.addAll(damage);
+		Rectangle frameBounds = new Rectangle(0, 0, frameWidth, frameHeight);
+		keepUnsentDamage(changedAreas, updateRequest, frameBounds);
+		
+		List<Rectangle> rectangles = new ArrayList<Rectangle>();
+		for (Rectangle changed : changedAreas) {
+			Rectangle rect = changed.intersection(frameBounds).intersection(updateRequest);
+			if (rect.isEmpty()) {
+				continue;
+			}
+			
+			if (copyRect == null) {
+				rectangles.add(rect);
+			}
+			else {
+				addUncoveredTiles(rect, copyRect.getDestination(), rectangles);
+			}
+		}
+		
+		if (rectangles.isEmpty() && copyRect == null) {
+			requestFrame();
+			return false;
+		}
+		
+		incrementalRequested = false;
+		sendFrameBufferUpdate(copyRect, rectangles, screenFrame);
+		return true;
+	}
+	
+	/**
+	 * Apply pixel format and encodings that client sent since last update,
+	 * and take update requests it sent. Lock is held only while they are taken.
+	 * 
+	 * @throws IOException
+	 */
+	private void takePendingMessages() throws IOException {
+		PixelFormat requestedPixelFormat;
+		List<Integer> requestedEncodings;
+		
+		lock.lock();
+		try {
+			requestedPixelFormat = pendingPixelFormat;
+			requestedEncodings = pendingEncodings;
+			pendingPixelFormat = null;
+			pendingEncodings = null;
+			
+			if (fullPending) {
+				fullUpdateRequest.setBounds(pendingFullUpdateRequest);
+				fullRequested = true;
+				incrementalRequested = false;
+				fullPending = false;
+			}
+			if (incrementalPending) {
+				updateRequest.setBounds(pendingUpdateRequest);
+				incrementalRequested = true;
+				incrementalPending = false;
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		if (requestedPixelFormat != null) {
+			applyPixelFormat(requestedPixelFormat);
+		}
+		if (requestedEncodings != null) {
+			applyEncodings(requestedEncodings);
+		}
+	}
+	
+	/**
+	 * Send complete requested area of latest frame.
+	 * 
+	 * @return true if update was sent, false if there is no frame yet
+	 * @throws IOException
+	 */
+	private boolean sendFullUpdate() throws IOException {
+		
+		Rectangle request = fullUpdateRequest;
+		
+		/*
+		 * Screen is not captured here, in non-blocking mode this is selector
+		 * thread. Latest frame may be old, since scheduler captures only on
+		 * demand, so new frame is requested and following incremental update
+		 * brings changes since.
+		 */
+		ScreenFrame screenFrame = captureFrame();
+		requestFrame();
+		if (screenFrame == null) {
+			return false;
+		}
+		fullRequested = false;
+		
+		int frameWidth = screenFrame.getWidth();
+		int frameHeight = screenFrame.getHeight();
+		int[] frame = screenFrame.getPixels();
+		
+		/*
+		 * Client now has complete frame, following incremental
+		 * requests are compared against it.
+		 */
+		List<Rectangle> changedAreas = new ArrayList<Rectangle>(unsentDamage);
+		changedAreas.addAll(damageTracker.update(frame, frameWidth, frameHeight, 
+				screenFrame.getTileHashes(damageTracker.getTileSize())));
+		frameSequence = screenFrame.getSequence();
+		
+		Rectangle frameBounds = new Rectangle(0, 0, frameWidth, frameHeight);
+		keepUnsentDamage(changedAreas, request, frameBounds);
+		
+		/*
+		 * Request outside of screen is answered with update of 0 rectangles.
+		 */
+		List<Rectangle> rectangles = new ArrayList<Rectangle>();
+		Rectangle rect = request.intersection(frameBounds);
+		if (!rect.isEmpty()) {
+			rectangles.add(rect);
+		}
+		sendFrameBufferUpdate(null, rectangles, screenFrame);
+		return true;
+	}
+	
+	/**
+	 * Get latest frame from capture scheduler, or capture screen
+	 * when session has no scheduler.
+	 * 
+	 * @return screen frame, or null if scheduler has not captured any frame yet
+	 */
+	private ScreenFrame captureFrame() {
+		if (captureScheduler != null) {
+			return captureScheduler.getLatestFrame();
+		}
+		
+		int frameWidth = nativeInterface.getScreenWidth();
+		int frameHeight = nativeInterface.getScreenHeight();
+		int[] frame = nativeInterface.getImageBuffer(0, 0, frameWidth, frameHeight);
+		return new ScreenFrame(frameSequence + 1, frame, frameWidth, frameHeight);
+	}
+	
+	/**
+	 * Ask capture scheduler for new frame, since latest one does not
+	 * answer pending update request.
+	 */
+	private void requestFrame() {
+		if (captureScheduler != null) {
+			captureScheduler.requestFrame();
+		}
+	}
+	
+	/**
+	 * Screen is likely to change after input event, so capture
+	 * scheduler should capture at full rate.
+	 */
+	private void expectChange() {
+		if (captureScheduler != null) {
+			captureScheduler.expectChange();
+		}
+	}
+	
+	/**
+	 * Wait before screen is checked again for changes. With capture scheduler,
+	 * wait ends as soon as new frame is captured.
+	 * 
+	 * @throws InterruptedException
+	 */
+	private void waitForFrame() throws InterruptedException {
+		if (captureScheduler != null) {
+			captureScheduler.awaitFrame(frameSequence, UPDATE_POLL_INTERVAL);
+		}
+		else {
+			Thread.sleep(UPDATE_POLL_INTERVAL);
+		}
+	}
+	
+	/**
+	 * Split rectangle into tiles and choose encoder for each tile.
+	 * Tiles next to each other in same tile row that use same encoder
+	 * are merged back into one rectangle.
+	 * 
+	 * @param rect rectangle to split
+	 * @param frame screen pixels
+	 * @param frameWidth screen width in pixels
+	 * @param encoded list where rectangles are added
+	 * @param encodedWith list where encoder of each rectangle is added
+	 */
+	private void addClassifiedTiles(Rectangle rect, int[] frame, int frameWidth, List<Rectangle> encoded, List<Encoder> encodedWith) {
+		if (rect.isEmpty()) {
+			return;
+		}
+		int tileSize = tileClassifier.getTileSize();
+		
+		for (int y = rect.y; y < rect.y + rect.height; y = (y / tileSize + 1) * tileSize) {
+			int height = Math.min((y / tileSize + 1) * tileSize, rect.y + rect.height) - y;
+			
+			int runStart = rect.x;
+			Encoder runEncoder = null;
+			for (int x = rect.x; x < rect.x + rect.width; x = (x / tileSize + 1) * tileSize) {
+				int width = Math.min((x / tileSize + 1) * tileSize, rect.x + rect.width) - x;
+				Encoder tileEncoder = chooseEncoder(frame, frameWidth, new Rectangle(x, y, width, height));
+				if (runEncoder != null && tileEncoder != runEncoder) {
+					addEncoded(new Rectangle(runStart, y, x - runStart, height), runEncoder, encoded, encodedWith);
+					runStart = x;
+				}
+				runEncoder = tileEncoder;
+			}
+			addEncoded(new Rectangle(runStart, y, rect.x + rect.width - runStart, height), runEncoder, encoded, encodedWith);
+		}
+	}
+	
+	private void addEncoded(Rectangle rect, Encoder rectEncoder, List<Rectangle> encoded, List<Encoder> encodedWith) {
+		rectEncoder.split(rect, encoded);
+		while (encodedWith.size() < encoded.size()) {
+			encodedWith.add(rectEncoder);
+		}
+	}
+	
+	/**
+	 * Split rectangle into tiles and add tiles that are not
+	 * completely inside covered area.
+	 * 
+	 * @param rect rectangle to split
+	 * @param covered area that client already has
+	 * @param rectangles list where tiles are added
+	 */
+	private void addUncoveredTiles(Rectangle rect, Rectangle covered, List<Rectangle> rectangles) {
+		int tileSize = damageTracker.getTileSize();
+		
+		for (int y = rect.y; y < rect.y + rect.height; y = (y / tileSize + 1) * tileSize) {
+			for (int x = rect.x; x < rect.x + rect.width; x = (x / tileSize + 1) * tileSize) {
+				Rectangle tile = new Rectangle(x, y, 
+						Math.min((x / tileSize + 1) * tileSize, rect.x + rect.width) - x,
+						Math.min((y / tileSize + 1) * tileSize, rect.y + rect.height) - y);
+				if (!covered.contains(tile)) {
+					rectangles.add(tile);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Remember parts of changed areas that lie outside of area sent to client.
+	 * 
+	 * @param changedAreas changed areas, including unsent ones from before
+	 * @param sent area that is sent to client
+	 * @param frameBounds frame size, changed areas are clipped to it
+	 */
+	private void keepUnsentDamage(List<Rectangle> changedAreas, Rectangle sent, Rectangle frameBounds) {
+		unsentDamage.clear();
+		for (Rectangle changed : changedAreas) {
+			addDifference(changed.intersection(frameBounds), sent, unsentDamage);
+		}
+		
+		if (unsentDamage.size() > MAX_UNSENT_DAMAGE) {
+			Rectangle bounds = unsentDamage.get(0);
+			for (Rectangle rect : unsentDamage) {
+				bounds = bounds.union(rect);
+			}
+			unsentDamage.clear();
+			unsentDamage.add(bounds);
+		}
+	}
+	
+	/**
+	 * Add parts of rectangle that lie outside of cut rectangle,
+	 * at most four rectangles.
+	 * 
+	 * @param rect rectangle
+	 * @param cut rectangle that is cut out
+	 * @param rectangles list where parts are added
+	 */
+	private static void addDifference(Rectangle rect, Rectangle cut, List<Rectangle> rectangles) {
+		if (rect.isEmpty()) {
+			return;
+		}
+		Rectangle inside = rect.intersection(cut);
+		if (inside.isEmpty()) {
+			rectangles.add(rect);
+			return;
+		}
+		
+		int bottom = rect.y + rect.height;
+		int insideBottom = inside.y + inside.height;
+		if (inside.y > rect.y) {
+			rectangles.add(new Rectangle(rect.x, rect.y, rect.width, inside.y - rect.y));
+		}
+		if (insideBottom < bottom) {
+			rectangles.add(new Rectangle(rect.x, insideBottom, rect.width, bottom - insideBottom));
+		}
+		if (inside.x > rect.x) {
+			rectangles.add(new Rectangle(rect.x, inside.y, inside.x - rect.x, inside.height));
+		}
+		if (inside.x + inside.width < rect.x + rect.width) {
+			rectangles.add(new Rectangle(inside.x + inside.width, inside.y, 
+					rect.x + rect.width - inside.x - inside.width, inside.height));
+		}
+	}
+	
+	private static boolean intersectsAny(Rectangle rect, List<Rectangle> rectangles) {
+		for (Rectangle other : rectangles) {
+			if (rect.intersects(other)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Sends two rectangles in frame buffer update, first is screen with old dimensions,
+	 * and second is desktop size pseudo encoding rectangle.
+	 *  
+	 * @throws IOException
+	 */
+	public void sendDesktopSize() throws IOException
+	{
+		
+		if (supportedEncoding.contains(-223)) {
+
+			int x = 0;
+			int y = 0;
+
+			int screenWidth = nativeInterface.getScreenWidth();
+			int screenHeight = nativeInterface.getScreenHeight();
+
+			int encodingType = ENCODING_RAW;
+					
+			byte messageType = 0x00;
+			byte padding     = 0x00;
+			
+			message.writeU8(messageType);
+			message.writeU8(padding);
+			
+			int numberOfRectangles = 2;
+			
+			writeU16int(numberOfRectangles);	
+		
+			
+			encodingType = ENCODING_RAW;
+			
+			writeU16int(x);
+			writeU16int(y);
+			writeU16int(screenWidth);
+			writeU16int(screenHeight);
+			writeS32int(encodingType);
+
+			rawEncoder.encode(nativeInterface.getImageBuffer(x, y, screenWidth, screenHeight), screenWidth, 
+					new Rectangle(x, y, screenWidth, screenHeight), pixelTranslator, message);
+
+			encodingType = -223;
+			
+			writeU16int(x);
+			writeU16int(y);
+			writeU16int(screenWidth);
+			writeU16int(screenHeight);
+			writeS32int(encodingType);
+			
+			flushMessage();
+			
+			log ("New screen size: " + screenWidth + " x " + screenHeight);
+			
+		}
+		else {
+			err ("Client does not support DesktopSize pseudo encoding.");
+		}
+	}
+
+	/**
+	 * Write assembled message on socket.
+	 * 
+	 * @throws IOException
+	 */
+	private void flushMessage() throws IOException {
+		message.writeTo(out);
+		out.flush();
+	}
+
+	/**
+	 * Read complete client message and handle it.<BR>
+	 * Key and pointer events are handled at once. Messages that change session
+	 * state are only recorded, writer thread applies them before next update,
+	 * so reader never waits for update that is being written.
+	 * 
+	 * @param messageType type of message, its first byte
+	 * @throws IOException
+	 */
+	private void handleMessage(int messageType) throws IOException {
+		if (messageType == 0) {
+			/*
+			 * Set Pixel Format
+			 */
+			readSetPixelFormat();
+		}
+		else if (messageType == 2) {
+			/*
+			 * Set Encodings
+			 */
+			readSetEncoding();
+		}
+		else if (messageType == 3) {
+			/*
+			 * Frame Buffer Update Request
+			 */
+			readFrameBufferUpdateRequest();
+		}
+		else if (messageType == 4) {
+			/*
+			 * Key Event
+			 */
+			readKeyEvent();
+		}
+		else if (messageType == 5) {
+			/*
+			 * Pointer Event
+			 */
+			readPointerEvent();
+		}
+		else if (messageType == 6) {
+			/*
+			 * Client Cut Text
+			 */
+			readClientCutText();
+		}
+		else {
+			throw new IOException("Unknown message type. Received message type = " + messageType);
+		}
+	}
+	
+	/**
+	 * Send protocol version, first step of handshake on non-blocking channel.
+	 * 
+	 * @throws IOException
+	 */
+	public void open() throws IOException {
+		state = STATE_VERSION;
+		sendProtocolVersion();
+	}
+	
+	/**
+	 * Handle all complete messages in input stream, including rest of handshake.
+	 * Incomplete message stays in stream until more data arrives, so this
+	 * method never blocks.<BR>
+	 * Key or pointer event is not handled while input dispatcher is full. It stays
+	 * in stream, and caller should stop reading channel and call this method again
+	 * once dispatcher has room.
+	 * 
+	 * @return false if input event waits for room in input dispatcher
+	 * @throws IOException
+	 */
+	public boolean processInput() throws IOException {
+		while (true) {
+			int available = in.available();
+			
+			if (state == STATE_VERSION) {
+				if (available < RFB_VER.length) {
+					return true;
+				}
+				String protocolVer = readProtocolVersion();
+				if (!protocolVer.startsWith("RFB")) {
+					throw new IOException("Invalid protocol version: " + protocolVer);
+				}
+				log ("Protocol ver.: " + protocolVer.substring(0, protocolVer.length() - 1));
+				sendSecurityType();
+				state = STATE_SHARED_FLAG;
+			}
+			else if (state == STATE_SHARED_FLAG) {
+				if (available < 1) {
+					return true;
+				}
+				byte sharedDesktop = readSharedDesktop();
+				log ("Shared desktop flag seleced by client: " + sharedDesktop);
+				
+				screenWidth = nativeInterface.getScreenWidth();
+				screenHeight = nativeInterface.getScreenHeight();
+				sendServerInit(screenWidth, screenHeight, "Test");
+				state = STATE_MESSAGES;
+			}
+			else {
+				int length = messageLength(available);
+				if (length < 0 || available < length) {
+					return true;
+				}
+				int messageType = getU8(0);
+				if (isInputEvent(messageType) && isInputFull()) {
+					return false;
+				}
+				handleMessage(messageType);
+			}
+		}
+	}
+	
+	/**
+	 * @return true if input dispatcher has no room for more input events
+	 */
+	public boolean isInputFull() {
+		return inputDispatcher != null && inputDispatcher.isFull();
+	}
+	
+	/**
+	 * @param messageType type of client message
+	 * @return true for key and pointer events
+	 */
+	private static boolean isInputEvent(int messageType) {
+		return messageType == 4 || messageType == 5;
+	}
+	
+	/**
+	 * Find length of next client message from its first bytes,
+	 * without removing them from input stream.
+	 * 
+	 * @param available number of bytes in input stream
+	 * @return message length, or -1 if more bytes are needed to find it
+	 * @throws IOException
+	 */
+	private int messageLength(int available) throws IOException {
+		if (available < 1) {
+			return -1;
+		}
+		int header = Math.min(available, 8);
+		in.mark(header);
+		readMessage(header);
+		in.reset();
+		
+		int messageType = getU8(0);
+		switch (messageType) {
+		case 0:
+			return 20;
+		case 2:
+			return header < 4 ? -1 : 4 + 4 * getU16(2);
+		case 3:
+			return 10;
+		case 4:
+			return 8;
+		case 5:
+			return 6;
+		case 6:
+			return header < 8 ? -1 : 8 + Math.max(0, getS32(4));
+		default:
+			throw new IOException("Unknown message type. Received message type = " + messageType);
+		}
+	}
+	
+	/**
+	 * @return true if update is requested and not answered yet
+	 */
+	public boolean hasPendingUpdate() {
+		lock.lock();
+		try {
+			return fullPending || incrementalPending || fullRequested || incrementalRequested;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Set factory of thread that sends frame buffer updates in {@link #run()}.
+	 * 
+	 * @param writerThreadFactory thread factory, for example of virtual threads
+	 */
+	public void setWriterThreadFactory(ThreadFactory writerThreadFactory) {
+		this.writerThreadFactory = writerThreadFactory;
+	}
+	
+	/**
+	 * Writer thread loop. It waits until update is requested, and answers it
+	 * from latest frame. Update is encoded and written without holding lock,
+	 * so reader thread keeps handling client messages meanwhile. When screen
+	 * has not changed, writer waits for next frame.
+	 */
+	private void writeUpdates() {
+		try {
+			while (true) {
+				lock.lock();
+				try {
+					while (!closed && !hasPendingUpdate()) {
+						updateRequested.await();
+					}
+					if (closed) {
+						return;
+					}
+				} finally {
+					lock.unlock();
+				}
+				
+				if (!sendPendingUpdate()) {
+					waitForFrame();
+				}
+			}
+		} catch (SocketException e) {
+			closeSocket();
+			
+		} catch (IOException | RuntimeException e) {
+			/*
+			 * Session can not continue without writer, socket is closed
+			 * so reader thread ends too.
+			 */
+			e.printStackTrace();
+			closeSocket();
+			
+		} catch (InterruptedException e) {
+			/*
+			 * Reader thread stops writer when client disconnects.
+			 */
+		}
+	}
+	
+	/**
+	 * Stop writer thread and wait until it ends, so that it does not
+	 * use encoders after they are closed.
+	 * 
+	 * @param writer writer thread, or null if it was not started
+	 */
+	private void stopWriter(Thread writer) {
+		lock.lock();
+		try {
+			closed = true;
+			updateRequested.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (writer != null) {
+			writer.interrupt();
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Close client socket, so that reader thread stops too.
+	 */
+	private void closeSocket() {
+		try {
+			clientSocket.close();
+		} catch (IOException e) {
+			/*
+			 * Socket is closed anyway.
+			 */
+		}
+	}
+	
+	@Override
+	public void run() {
+		
+		Thread writer = null;
 		try {
 
 			/*
@@ -602,6 +1729,13 @@ public class RFBService implements Runnable {
 			String windowTitle = "Test";
 			sendServerInit(screenWidth, screenHeight, windowTitle);			
 			
+			/*
+			 * Frame buffer updates are sent by writer thread, so this thread never
+			 * waits for large update to be written before it handles next input event.
+			 */
+			writer = writerThreadFactory.newThread(this::writeUpdates);
+			writer.start();
+			
 			/*
 			 * Main loop where clients messages are read from socket.
 			 */
@@ -621,47 +1755,18 @@ public class RFBService implements Runnable {
 				in.reset();
 				
 				/*
-				 * Depending on message type, read complete message on socket.
+				 * Input events are not decoded while input dispatcher
+				 * is full, so none of them is dropped.
 				 */
-				if (messageType == 0) {
-					/*
-					 * Set Pixel Format
-					 */
-					readSetPixelFormat();
-				}
-				else if (messageType == 2) {
-					/*
-					 * Set Encodings
-					 */
-					readSetEncoding();
-				}
-				else if (messageType == 3) {
-					/*
-					 * Frame Buffer Update Request
-					 */
-					readFrameBufferUpdateRequest();
-				}
-				else if (messageType == 4) {
-					/*
-					 * Key Event
-					 */
-					readKeyEvent();
-				}
-				else if (messageType == 5) {
-					/*
-					 * Pointer Event
-					 */
-					readPointerEvent();
-				}
-				else if (messageType == 6) {
-					/*
-					 * Client Cut Text
-					 */
-					readClientCutText();
-				}
-				else {
-					err("Unknown message type. Received message type = " + messageType);
+				if (isInputEvent(messageType) && inputDispatcher != null) {
+					try {
+						inputDispatcher.awaitRoom();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
 				}
+				
+				handleMessage(messageType);
 			}
 			
 			log("Client connection closed.");
@@ -674,6 +1779,14 @@ public class RFBService implements Runnable {
 			
 		} catch (IOException e) {		
 			e.printStackTrace();
+			
+		} finally {
+			/*
+			 * Socket is closed first, writer may be blocked in write.
+			 */
+			closeSocket();
+			stopWriter(writer);
+			close();
 		}
 	}
 	
@@ -696,103 +1809,78 @@ public class RFBService implements Runnable {
 	}
 
 	/**
-	 * Read 2 bytes from socket and return integer value.
+	 * Read complete message, or part of it, from socket into input buffer.
+	 * Buffer is reused for all messages, so fields have to be parsed
+	 * before next message is read.
 	 *
-	 * @return integer
+	 * @param len how many bytes to read
 	 * @throws IOException
 	 */
-	private int readU16int() throws IOException {
-
-		byte[] buffer = new byte[2];
-
-		readBuffer(buffer);
-
-		int value = ((buffer[0] & 0xFF) << 8)
-				+ (buffer[1] & 0xFF);
-
-		return value;
-
-	}
-
-	private void readBuffer(byte[] buffer) throws IOException {
-		int offset = 0, left = buffer.length;
-		while (offset < buffer.length) {
-			int numOfBytesRead = 0;
-			numOfBytesRead = in.read(buffer, offset, left);
+	private void readMessage(int len) throws IOException {
+		if (inBuffer.length < len) {
+			inBuffer = new byte[len];
+		}
+		
+		int offset = 0;
+		while (offset < len) {
+			int numOfBytesRead = in.read(inBuffer, offset, len - offset);
+			if (numOfBytesRead < 0) {
+				throw new EOFException();
+			}
 			offset = offset + numOfBytesRead;
-			left = left - numOfBytesRead;
 		}
 	}
 
 	/**
-	 * Read 4 bytes from socket and return integer value.
+	 * Get 1 byte from input buffer.
 	 *
-	 * @return integer
-	 * @throws IOException
+	 * @param offset position in input buffer
+	 * @return integer value between 0 and 255
 	 */
-	private int readU32int() throws IOException {
-
-		byte[] buffer = new byte[4];
-
-		readBuffer(buffer);
-
-		int value = (
-				((buffer[0] << 24) & 0xFF000000)
-						| ((buffer[1] << 16) & 0x00FF0000)
-						| ((buffer[2] << 8 ) & 0x0000FF00)
-						| ( buffer[3]        & 0x000000FF));
-
-		return value;
-
+	private int getU8(int offset) {
+		return inBuffer[offset] & 0xFF;
 	}
 
 	/**
-	 * Write 2 bytes on socket.
+	 * Get 2 bytes from input buffer.
 	 *
-	 * @param value integer value between 0 and 65535
-	 * @throws IOException
+	 * @param offset position in input buffer
+	 * @return integer value between 0 and 65535
 	 */
-	private void writeU16int(int value) throws IOException {
-
-		byte[] buffer = new byte[2];
-
-		buffer[0] = (byte) ((value & 0x0000FF00) >> 8);
-		buffer[1] = (byte) ((value & 0x000000FF) );
-
-		out.write(buffer);
-
+	private int getU16(int offset) {
+		return ((inBuffer[offset] & 0xFF) << 8)
+				| (inBuffer[offset + 1] & 0xFF);
 	}
 
 	/**
-	 * Write 4 bytes on socket.
+	 * Get 4 bytes from input buffer.
 	 *
-	 * @param value integer value between <I>Integer.MIN_VALUE</I> and <I>Integer.MAX_VALUE</I>
-	 * @throws IOException
+	 * @param offset position in input buffer
+	 * @return integer value
 	 */
-	private void writeS32int(int value) throws IOException {
-
-		byte[] buffer = new byte[4];
-
-		buffer[0] = (byte) ((value & 0xFF000000) >> 24);
-		buffer[1] = (byte) ((value & 0x00FF0000) >> 16);
-		buffer[2] = (byte) ((value & 0x0000FF00) >> 8);
-		buffer[3] = (byte) ((value & 0x000000FF) );
-
-		out.write(buffer);
+	private int getS32(int offset) {
+		return ((inBuffer[offset] & 0xFF) << 24)
+				| ((inBuffer[offset + 1] & 0xFF) << 16)
+				| ((inBuffer[offset + 2] & 0xFF) << 8)
+				| (inBuffer[offset + 3] & 0xFF);
+	}
 
+	/**
+	 * Write 2 bytes in message buffer.
+	 *
+	 * @param value integer value between 0 and 65535
+	 */
+	private void writeU16int(int value) {
+		message.writeU16(value);
 	}
 
 	/**
-	 * Read array of bytes from socket.
+	 * Write 4 bytes in message buffer.
 	 *
-	 * @param len how many bytes to read
-	 * @return byte array
-	 * @throws IOException
+	 * @param value integer value between <I>Integer.MIN_VALUE</I> and <I>Integer.MAX_VALUE</I>
 	 */
-	private byte[] readU8Array(int len) throws IOException {
-		byte[] buffer = new byte[len];
-		readBuffer(buffer);
-		return buffer;
+	private void writeS32int(int value) {
+		message.writeS32(value);
 	}
 	
 }
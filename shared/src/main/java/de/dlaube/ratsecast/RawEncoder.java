@@ -0,0 +1,42 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+
+/**
+ * Raw encoding (encoding type 0), pixels are sent as they are, row by row.
+ * Every client supports it.
+ */
+public class RawEncoder implements Encoder {
+
+	/**
+	 * Pixels are translated in bands of about this many bytes,
+	 * message buffer may be written on socket after each band.
+	 */
+	private static final int BAND_SIZE = 64 * 1024;
+
+	@Override
+	public int getEncodingType() {
+		return 0;
+	}
+
+	@Override
+	public boolean isStateless() {
+		return true;
+	}
+
+	@Override
+	public void encode(int[] frame, int scanline, Rectangle rect, PixelTranslator pixelTranslator, MessageBuffer message) throws IOException {
+		int rowLength = rect.width * pixelTranslator.getBytesPerPixel();
+		int rowsPerBand = Math.max(1, BAND_SIZE / Math.max(1, rowLength));
+		int offset = rect.y * scanline + rect.x;
+
+		for (int row = 0; row < rect.height; row += rowsPerBand) {
+			int rows = Math.min(rowsPerBand, rect.height - row);
+			int pos = message.reserve(rows * rowLength);
+			pos = pixelTranslator.translate(frame, offset + row * scanline, scanline, rect.width, rows, message.array(), pos);
+			message.setPosition(pos);
+			message.checkpoint();
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package de.dlaube.ratsecast;
+
+/**
+ * Tile coder shared by ZRLE and TRLE encodings.<BR>
+ * Each tile is encoded as raw, solid color, packed palette, plain RLE or
+ * palette RLE, whichever is estimated to be smallest. Colors are collected
+ * with {@link TilePalette}. Pixels are written as CPIXEL, 3 bytes instead of 4
+ * when pixel format allows it.
+ */
+public class RleTileCoder {
+
+	private static final int SUBENCODING_RAW = 0;
+	private static final int SUBENCODING_SOLID = 1;
+	private static final int SUBENCODING_PLAIN_RLE = 128;
+
+	private final TilePalette palette = new TilePalette();
+	private final int[] tile;
+
+	private PixelTranslator pixelTranslator;
+	private int cpixelSize;
+	private boolean cpixelLow;
+	private boolean bigEndian;
+
+	/**
+	 * @param tileSize largest width and height of tile
+	 */
+	public RleTileCoder(int tileSize) {
+		tile = new int[tileSize * tileSize];
+	}
+
+	/**
+	 * Prepare CPIXEL layout for pixel format. CPIXEL has 3 bytes when format
+	 * is true color with 32 bits per pixel, depth at most 24, and all color bits
+	 * fit into either lowest or highest 3 bytes.
+	 */
+	public void setPixelTranslator(PixelTranslator pixelTranslator) {
+		if (this.pixelTranslator == pixelTranslator) {
+			return;
+		}
+		this.pixelTranslator = pixelTranslator;
+
+		PixelFormat format = pixelTranslator.getPixelFormat();
+		bigEndian = format.isBigEndian();
+		cpixelSize = pixelTranslator.getBytesPerPixel();
+
+		if (format.isTrueColor() && format.getBitsPerPixel() == 32 && format.getDepth() <= 24) {
+			long colorBits = ((long) format.getRedMax() << format.getRedShift())
+					| ((long) format.getGreenMax() << format.getGreenShift())
+					| ((long) format.getBlueMax() << format.getBlueShift());
+			if ((colorBits & 0xFF000000L) == 0) {
+				cpixelSize = 3;
+				cpixelLow = true;
+			}
+			else if ((colorBits & 0xFFL) == 0 && colorBits <= 0xFFFFFFFFL) {
+				cpixelSize = 3;
+				cpixelLow = false;
+			}
+		}
+	}
+
+	private int writeCPixel(int pixelValue, byte[] buffer, int pos) {
+		if (cpixelSize != 3) {
+			return pixelTranslator.writePixel(pixelValue, buffer, pos);
+		}
+
+		int value = cpixelLow ? pixelValue : pixelValue >>> 8;
+		if (bigEndian) {
+			buffer[pos]     = (byte) (value >> 16);
+			buffer[pos + 1] = (byte) (value >> 8);
+			buffer[pos + 2] = (byte) value;
+		}
+		else {
+			buffer[pos]     = (byte) value;
+			buffer[pos + 1] = (byte) (value >> 8);
+			buffer[pos + 2] = (byte) (value >> 16);
+		}
+		return pos + 3;
+	}
+
+	/**
+	 * Encode one tile.
+	 *
+	 * @param frame screen pixels
+	 * @param scanline number of pixels in one screen row
+	 * @param x left edge of tile
+	 * @param y top edge of tile
+	 * @param width tile width, not more than tile size
+	 * @param height tile height, not more than tile size
+	 * @param tileData buffer where encoded tile is written
+	 */
+	public void encodeTile(int[] frame, int scanline, int x, int y, int width, int height, MessageBuffer tileData) {
+		int count = width * height;
+
+		for (int row = 0; row < height; row++) {
+			int index = (y + row) * scanline + x;
+			int base = row * width;
+			for (int col = 0; col < width; col++) {
+				tile[base + col] = pixelTranslator.translate(frame[index + col]);
+			}
+		}
+
+		boolean fits = palette.analyze(tile, count, TilePalette.MAX_SIZE);
+		int paletteSize = palette.getSize();
+
+		int start = tileData.reserve(1 + TilePalette.MAX_SIZE * 4 + count * (4 + 2));
+		byte[] buffer = tileData.array();
+		int pos = start;
+
+		if (fits && paletteSize == 1) {
+			buffer[pos++] = SUBENCODING_SOLID;
+			pos = writeCPixel(palette.getColor(0), buffer, pos);
+			tileData.setPosition(pos);
+			return;
+		}
+
+		int runs, singlePixels;
+		if (fits) {
+			runs = palette.getRuns();
+			singlePixels = palette.getSinglePixels();
+		}
+		else {
+			runs = 1;
+			for (int i = 1; i < count; i++) {
+				if (tile[i] != tile[i - 1]) {
+					runs++;
+				}
+			}
+			singlePixels = 0;
+		}
+
+		/*
+		 * Estimate size of each subencoding and choose the smallest one.
+		 */
+		int subencoding = SUBENCODING_RAW;
+		int bestSize = count * cpixelSize;
+
+		int plainRleSize = runs * (cpixelSize + 1) + count / 255;
+		if (plainRleSize < bestSize) {
+			subencoding = SUBENCODING_PLAIN_RLE;
+			bestSize = plainRleSize;
+		}
+
+		if (fits) {
+			int paletteRleSize = paletteSize * cpixelSize + 2 * runs - singlePixels + count / 255;
+			if (paletteRleSize < bestSize) {
+				subencoding = 128 + paletteSize;
+				bestSize = paletteRleSize;
+			}
+
+			if (paletteSize <= 16) {
+				int bits = bitsPerIndex(paletteSize);
+				int packedSize = paletteSize * cpixelSize + height * ((width * bits + 7) / 8);
+				if (packedSize < bestSize) {
+					subencoding = paletteSize;
+					bestSize = packedSize;
+				}
+			}
+		}
+
+		buffer[pos++] = (byte) subencoding;
+
+		if (subencoding == SUBENCODING_RAW) {
+			for (int i = 0; i < count; i++) {
+				pos = writeCPixel(tile[i], buffer, pos);
+			}
+		}
+		else if (subencoding == SUBENCODING_PLAIN_RLE) {
+			int i = 0;
+			while (i < count) {
+				int pixel = tile[i];
+				int runEnd = i + 1;
+				while (runEnd < count && tile[runEnd] == pixel) {
+					runEnd++;
+				}
+				pos = writeCPixel(pixel, buffer, pos);
+				pos = writeRunLength(runEnd - i, buffer, pos);
+				i = runEnd;
+			}
+		}
+		else {
+			for (int i = 0; i < paletteSize; i++) {
+				pos = writeCPixel(palette.getColor(i), buffer, pos);
+			}
+
+			if (subencoding > 128) {
+				/*
+				 * Palette RLE, runs of single pixel have no length.
+				 */
+				int i = 0;
+				while (i < count) {
+					int pixel = tile[i];
+					int runEnd = i + 1;
+					while (runEnd < count && tile[runEnd] == pixel) {
+						runEnd++;
+					}
+					int index = palette.indexOf(pixel);
+					if (runEnd - i == 1) {
+						buffer[pos++] = (byte) index;
+					}
+					else {
+						buffer[pos++] = (byte) (index | 128);
+						pos = writeRunLength(runEnd - i, buffer, pos);
+					}
+					i = runEnd;
+				}
+			}
+			else {
+				/*
+				 * Packed palette, each row starts at byte boundary.
+				 */
+				int bits = bitsPerIndex(paletteSize);
+				for (int row = 0; row < height; row++) {
+					int value = 0, filled = 0;
+					for (int col = 0; col < width; col++) {
+						value = (value << bits) | palette.indexOf(tile[row * width + col]);
+						filled += bits;
+						if (filled == 8) {
+							buffer[pos++] = (byte) value;
+							value = 0;
+							filled = 0;
+						}
+					}
+					if (filled > 0) {
+						buffer[pos++] = (byte) (value << (8 - filled));
+					}
+				}
+			}
+		}
+
+		tileData.setPosition(pos);
+	}
+
+	private static int bitsPerIndex(int paletteSize) {
+		if (paletteSize <= 2) {
+			return 1;
+		}
+		if (paletteSize <= 4) {
+			return 2;
+		}
+		return 4;
+	}
+
+	/**
+	 * Run length is written as (length - 1), split into bytes of 255 and remainder.
+	 */
+	private static int writeRunLength(int length, byte[] buffer, int pos) {
+		int value = length - 1;
+		while (value >= 255) {
+			buffer[pos++] = (byte) 255;
+			value -= 255;
+		}
+		buffer[pos++] = (byte) value;
+		return pos;
+	}
+}
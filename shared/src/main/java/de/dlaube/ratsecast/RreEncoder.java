@@ -0,0 +1,80 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+
+/**
+ * RRE encoding (encoding type 2).<BR>
+ * Rectangle is sent as background color, most frequent color of rectangle,
+ * and list of subrectangles of other colors, found with {@link SubrectCoder}.
+ * Encoding needs no compression library, so it costs little CPU time and suits
+ * large areas of few colors well.
+ */
+public class RreEncoder implements Encoder {
+
+	private final SubrectCoder subrectCoder = new SubrectCoder(64 * 64);
+
+	@Override
+	public int getEncodingType() {
+		return 2;
+	}
+
+	@Override
+	public boolean isStateless() {
+		return true;
+	}
+
+	@Override
+	public void encode(int[] frame, int scanline, Rectangle rect, PixelTranslator pixelTranslator, MessageBuffer message) throws IOException {
+		subrectCoder.load(frame, scanline, rect.x, rect.y, rect.width, rect.height, pixelTranslator);
+		int background = subrectCoder.mostFrequentColor();
+
+		/*
+		 * Number of subrectangles is known only at end, it is written
+		 * in place that is reserved here.
+		 */
+		int countPos = message.reserve(4);
+		message.setPosition(countPos + 4);
+		int pos = message.reserve(4);
+		message.setPosition(pixelTranslator.writePixel(background, message.array(), pos));
+
+		int subrects = 0;
+		int subrectSize = pixelTranslator.getBytesPerPixel() + 4 * getCoordinateSize();
+
+		subrectCoder.start(background);
+		while (subrectCoder.nextSubrect()) {
+			pos = message.reserve(subrectSize);
+			byte[] buffer = message.array();
+			pos = pixelTranslator.writePixel(subrectCoder.getSubrectColor(), buffer, pos);
+			pos = writeCoordinate(subrectCoder.getSubrectX(), buffer, pos);
+			pos = writeCoordinate(subrectCoder.getSubrectY(), buffer, pos);
+			pos = writeCoordinate(subrectCoder.getSubrectWidth(), buffer, pos);
+			pos = writeCoordinate(subrectCoder.getSubrectHeight(), buffer, pos);
+			message.setPosition(pos);
+			subrects++;
+		}
+
+		byte[] buffer = message.array();
+		buffer[countPos]     = (byte) (subrects >> 24);
+		buffer[countPos + 1] = (byte) (subrects >> 16);
+		buffer[countPos + 2] = (byte) (subrects >> 8);
+		buffer[countPos + 3] = (byte) subrects;
+
+		message.checkpoint();
+	}
+
+	/**
+	 * @return number of bytes of one coordinate or size of subrectangle
+	 */
+	protected int getCoordinateSize() {
+		return 2;
+	}
+
+	private int writeCoordinate(int value, byte[] buffer, int pos) {
+		if (getCoordinateSize() == 2) {
+			buffer[pos++] = (byte) (value >> 8);
+		}
+		buffer[pos++] = (byte) value;
+		return pos;
+	}
+}
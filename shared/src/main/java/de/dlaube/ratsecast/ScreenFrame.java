@@ -0,0 +1,69 @@
+package de.dlaube.ratsecast;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One captured frame of screen.<BR>
+ * Frame is immutable and may be shared by all client sessions. Each frame has
+ * sequence number, higher for later frames, so session can tell whether screen
+ * was captured again since its last update. {@link TileHashes} of frame are
+ * computed on first request and cached, so they are computed only once no matter
+ * how many sessions use frame.
+ */
+public final class ScreenFrame {
+
+	private final long sequence;
+	private final int[] pixels;
+	private final int width, height;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private TileHashes tileHashes;
+
+	/**
+	 * @param sequence sequence number of frame
+	 * @param pixels screen pixels in <I>0x00RRGGBB</I> form, must not be modified later
+	 * @param width screen width
+	 * @param height screen height
+	 */
+	public ScreenFrame(long sequence, int[] pixels, int width, int height) {
+		this.sequence = sequence;
+		this.pixels = pixels;
+		this.width = width;
+		this.height = height;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return screen pixels, must not be modified
+	 */
+	public int[] getPixels() {
+		return pixels;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @param tileSize width and height of tile in pixels
+	 * @return tile hashes of frame
+	 */
+	public TileHashes getTileHashes(int tileSize) {
+		lock.lock();
+		try {
+			if (tileHashes == null || tileHashes.getTileSize() != tileSize) {
+				tileHashes = TileHashes.compute(pixels, width, height, tileSize);
+			}
+			return tileHashes;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
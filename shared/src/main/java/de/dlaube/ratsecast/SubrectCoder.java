@@ -0,0 +1,189 @@
+package de.dlaube.ratsecast;
+
+import java.util.Arrays;
+
+/**
+ * Background and subrectangle search shared by RRE, CoRRE and Hextile encodings.<BR>
+ * Pixels of rectangle are translated to client pixel format, background is
+ * most frequent color. Subrectangles of other colors are then found greedily,
+ * each one grows to the right and then down as far as its color stays same,
+ * and pixels it covers become background.
+ */
+public class SubrectCoder {
+
+	/**
+	 * Pixel values of current rectangle, in client pixel format.
+	 */
+	private int[] pixels;
+	private int[] sorted = new int[0];
+	private final TilePalette palette = new TilePalette();
+	private final int[] colorCounts = new int[TilePalette.MAX_SIZE];
+
+	private int width, height, count;
+	private int background;
+	private int next;
+
+	private int subrectX, subrectY, subrectWidth, subrectHeight, subrectColor;
+
+	/**
+	 * @param initialSize number of pixels of largest expected rectangle, larger one grows buffer
+	 */
+	public SubrectCoder(int initialSize) {
+		pixels = new int[initialSize];
+	}
+
+	/**
+	 * Translate pixels of rectangle to client pixel format.
+	 *
+	 * @param frame screen pixels
+	 * @param scanline width of screen
+	 * @return number of pixels
+	 */
+	public int load(int[] frame, int scanline, int x, int y, int width, int height, PixelTranslator pixelTranslator) {
+		this.width = width;
+		this.height = height;
+		count = width * height;
+		if (pixels.length < count) {
+			pixels = new int[count];
+		}
+
+		for (int row = 0; row < height; row++) {
+			int index = (y + row) * scanline + x;
+			int base = row * width;
+			for (int col = 0; col < width; col++) {
+				pixels[base + col] = pixelTranslator.translate(frame[index + col]);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param index position of pixel inside loaded rectangle, row by row
+	 * @return pixel value in client pixel format
+	 */
+	public int getPixel(int index) {
+		return pixels[index];
+	}
+
+	/**
+	 * Colors are counted with palette when rectangle has few colors,
+	 * otherwise copy of pixels is sorted.
+	 *
+	 * @return most frequent color of loaded rectangle
+	 */
+	public int mostFrequentColor() {
+		if (count == 0) {
+			return 0;
+		}
+
+		if (palette.analyze(pixels, count, TilePalette.MAX_SIZE)) {
+			int size = palette.getSize();
+			Arrays.fill(colorCounts, 0, size, 0);
+			for (int i = 0; i < count; i++) {
+				colorCounts[palette.indexOf(pixels[i])]++;
+			}
+			int best = 0;
+			for (int i = 1; i < size; i++) {
+				if (colorCounts[i] > colorCounts[best]) {
+					best = i;
+				}
+			}
+			return palette.getColor(best);
+		}
+
+		if (sorted.length < count) {
+			sorted = new int[count];
+		}
+		System.arraycopy(pixels, 0, sorted, 0, count);
+		Arrays.sort(sorted, 0, count);
+
+		int best = sorted[0], bestRun = 0;
+		int run = 0;
+		for (int i = 0; i < count; i++) {
+			run = (i > 0 && sorted[i] == sorted[i - 1]) ? run + 1 : 1;
+			if (run > bestRun) {
+				best = sorted[i];
+				bestRun = run;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Start search of subrectangles from top left corner.
+	 *
+	 * @param background color that is not covered by subrectangles
+	 */
+	public void start(int background) {
+		this.background = background;
+		next = 0;
+	}
+
+	/**
+	 * Find next subrectangle. Its position, size and color are then
+	 * available from getters.
+	 *
+	 * @return false if no pixel of other color than background is left
+	 */
+	public boolean nextSubrect() {
+		while (next < count && pixels[next] == background) {
+			next++;
+		}
+		if (next == count) {
+			return false;
+		}
+
+		int i = next;
+		int color = pixels[i];
+		int sx = i % width;
+		int sy = i / width;
+
+		int sw = 1;
+		while (sx + sw < width && pixels[i + sw] == color) {
+			sw++;
+		}
+		int sh = 1;
+		while (sy + sh < height && isRun(i + sh * width, sw, color)) {
+			sh++;
+		}
+		for (int row = 0; row < sh; row++) {
+			Arrays.fill(pixels, i + row * width, i + row * width + sw, background);
+		}
+
+		subrectX = sx;
+		subrectY = sy;
+		subrectWidth = sw;
+		subrectHeight = sh;
+		subrectColor = color;
+		return true;
+	}
+
+	public int getSubrectX() {
+		return subrectX;
+	}
+
+	public int getSubrectY() {
+		return subrectY;
+	}
+
+	public int getSubrectWidth() {
+		return subrectWidth;
+	}
+
+	public int getSubrectHeight() {
+		return subrectHeight;
+	}
+
+	public int getSubrectColor() {
+		return subrectColor;
+	}
+
+	private boolean isRun(int index, int length, int color) {
+		for (int i = index; i < index + length; i++) {
+			if (pixels[i] != color) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,59 @@
+package de.dlaube.ratsecast;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that measures how fast data is written on socket.<BR>
+ * Time spent in each write is measured, and throughput is average of recent
+ * writes, older writes count less and less. Writes return as soon as data is
+ * in socket send buffer, so measured throughput drops only when network is
+ * slower than server, and send buffer is full.
+ */
+public class ThroughputMeter extends FilterOutputStream {
+
+	/**
+	 * Writes shorter than this are not measured, their time is mostly overhead.
+	 */
+	private static final int MIN_SAMPLE = 4 * 1024;
+
+	/**
+	 * Weight of history in average, each new sample has weight of 1 - DECAY.
+	 */
+	private static final double DECAY = 0.875;
+
+	private double bytes;
+	private double nanos;
+
+	/**
+	 * @param out socket output stream
+	 */
+	public ThroughputMeter(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		out.write(b, off, len);
+		long elapsed = System.nanoTime() - start;
+
+		if (len >= MIN_SAMPLE) {
+			synchronized (this) {
+				bytes = bytes * DECAY + len;
+				nanos = nanos * DECAY + Math.max(1, elapsed);
+			}
+		}
+	}
+
+	/**
+	 * @return average throughput in bytes per second, or 0 if nothing was measured yet
+	 */
+	public synchronized double getBytesPerSecond() {
+		if (nanos == 0) {
+			return 0;
+		}
+		return bytes * 1e9 / nanos;
+	}
+}
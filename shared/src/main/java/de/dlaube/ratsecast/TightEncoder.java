@@ -0,0 +1,414 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Tight encoding (encoding type 7).<BR>
+ * Rectangle of single color is sent as fill. Other rectangles are filtered and
+ * compressed with one of four zlib streams that live as long as connection:
+ * stream 0 for full color data, stream 1 for two color palette, stream 2 for
+ * larger palette and stream 3 for gradient filtered data. Rectangles are limited
+ * to 2048 pixels in width and 65536 pixels in area, larger ones are split, see
+ * {@link #split(Rectangle, List)}.<BR>
+ * Pixels are sent as TPIXEL, which is 3 bytes in R, G, B order when pixel format
+ * is true color with 32 bits per pixel, depth 24 and 8 bits per color component.
+ * Gradient filter is used only with such pixel format.<BR>
+ * When client sends quality level pseudo encoding, rectangles with many colors
+ * are sent as JPEG image instead, see {@link #setQualityLevel(int)}.
+ */
+public class TightEncoder implements Encoder {
+
+	private static final int MAX_RECT_WIDTH = 2048;
+	private static final int MAX_RECT_SIZE = 64 * 1024;
+
+	/**
+	 * Data shorter than this is sent without compression.
+	 */
+	private static final int MIN_TO_COMPRESS = 12;
+
+	private static final int FILL_COMPRESSION = 0x80;
+	private static final int JPEG_COMPRESSION = 0x90;
+	private static final int EXPLICIT_FILTER = 0x40;
+
+	private static final int FILTER_PALETTE = 1;
+	private static final int FILTER_GRADIENT = 2;
+
+	private static final int STREAM_FULL_COLOR = 0;
+	private static final int STREAM_MONO = 1;
+	private static final int STREAM_INDEXED = 2;
+	private static final int STREAM_GRADIENT = 3;
+
+	/**
+	 * Smallest rectangle, in pixels, that is sent as JPEG image.
+	 * Headers of JPEG image take several hundred bytes.
+	 */
+	private static final int MIN_JPEG_SIZE = 1024;
+
+	/**
+	 * JPEG quality for each quality level.
+	 */
+	private static final int[] JPEG_QUALITY = {15, 29, 41, 42, 62, 77, 79, 86, 92, 100};
+
+	private final ZlibStream[] zlib = new ZlibStream[4];
+	private final MessageBuffer data = new MessageBuffer(MAX_RECT_SIZE * 3);
+	private final TilePalette palette = new TilePalette();
+	private final int[] pixels = new int[MAX_RECT_SIZE];
+
+	private PixelTranslator pixelTranslator;
+	private boolean tpixel24;
+	private int redShift, greenShift, blueShift;
+
+	private int qualityLevel = -1;
+	private ImageWriter jpegWriter;
+	private ImageWriteParam jpegParam;
+	private BufferedImage jpegImage;
+	private final JpegOutput jpegOutput = new JpegOutput();
+
+	public TightEncoder() {
+		this(6);
+	}
+
+	/**
+	 * @param compressionLevel zlib compression level, 0-9
+	 */
+	public TightEncoder(int compressionLevel) {
+		for (int i = 0; i < zlib.length; i++) {
+			zlib[i] = new ZlibStream(compressionLevel);
+		}
+	}
+
+	@Override
+	public int getEncodingType() {
+		return 7;
+	}
+
+	@Override
+	public void setCompressionLevel(int level) {
+		for (ZlibStream stream : zlib) {
+			stream.setLevel(level);
+		}
+	}
+
+	/**
+	 * Enable JPEG compression. JPEG writer is created on first use
+	 * and kept for complete connection.
+	 *
+	 * @param level quality level 0-9, or -1 to disable JPEG
+	 */
+	@Override
+	public void setQualityLevel(int level) {
+		qualityLevel = level;
+		if (jpegParam != null && level >= 0) {
+			jpegParam.setCompressionQuality(JPEG_QUALITY[level] / 100f);
+		}
+	}
+
+	@Override
+	public void close() {
+		for (ZlibStream stream : zlib) {
+			stream.end();
+		}
+		if (jpegWriter != null) {
+			jpegWriter.dispose();
+		}
+	}
+
+	@Override
+	public void split(Rectangle rect, List<Rectangle> rectangles) {
+		int width = Math.min(rect.width, MAX_RECT_WIDTH);
+		int rows = Math.max(1, MAX_RECT_SIZE / width);
+
+		for (int y = rect.y; y < rect.y + rect.height; y += rows) {
+			int height = Math.min(rows, rect.y + rect.height - y);
+			for (int x = rect.x; x < rect.x + rect.width; x += width) {
+				rectangles.add(new Rectangle(x, y, Math.min(width, rect.x + rect.width - x), height));
+			}
+		}
+	}
+
+	@Override
+	public void encode(int[] frame, int scanline, Rectangle rect, PixelTranslator pixelTranslator, MessageBuffer message) throws IOException {
+		setPixelTranslator(pixelTranslator);
+
+		int width = rect.width, height = rect.height;
+		int count = width * height;
+		if (count == 0) {
+			/*
+			 * Empty rectangle, any valid data will do.
+			 */
+			message.writeU8(FILL_COMPRESSION);
+			writeTPixel(0, message);
+			return;
+		}
+
+		for (int row = 0; row < height; row++) {
+			int index = (rect.y + row) * scanline + rect.x;
+			int base = row * width;
+			for (int col = 0; col < width; col++) {
+				pixels[base + col] = pixelTranslator.translate(frame[index + col]);
+			}
+		}
+
+		boolean fits = palette.analyze(pixels, count, TilePalette.MAX_SIZE);
+		int paletteSize = palette.getSize();
+
+		if (fits && paletteSize == 1) {
+			message.writeU8(FILL_COMPRESSION);
+			writeTPixel(palette.getColor(0), message);
+		}
+		else if (fits && paletteSize * tpixelSize() < count) {
+			encodePalette(width, height, paletteSize, message);
+		}
+		else if (isJpegAllowed(count)) {
+			encodeJpeg(frame, scanline, rect, message);
+		}
+		else if (tpixel24 && TileClassifier.gradientError(frame, rect.y * scanline + rect.x, scanline, width, height)
+				<= TileClassifier.SMOOTH_THRESHOLD) {
+			encodeGradient(width, height, message);
+		}
+		else {
+			encodeFullColor(count, message);
+		}
+
+		message.checkpoint();
+	}
+
+	private void encodePalette(int width, int height, int paletteSize, MessageBuffer message) {
+		int stream = paletteSize == 2 ? STREAM_MONO : STREAM_INDEXED;
+
+		message.writeU8((stream << 4) | EXPLICIT_FILTER);
+		message.writeU8(FILTER_PALETTE);
+		message.writeU8(paletteSize - 1);
+		for (int i = 0; i < paletteSize; i++) {
+			writeTPixel(palette.getColor(i), message);
+		}
+
+		int pos = data.reserve(height * width);
+		byte[] buffer = data.array();
+
+		if (paletteSize == 2) {
+			/*
+			 * One bit per pixel, each row starts at byte boundary.
+			 */
+			int first = palette.getColor(0);
+			for (int row = 0; row < height; row++) {
+				int value = 0, filled = 0;
+				for (int col = 0; col < width; col++) {
+					value = (value << 1) | (pixels[row * width + col] == first ? 0 : 1);
+					if (++filled == 8) {
+						buffer[pos++] = (byte) value;
+						value = 0;
+						filled = 0;
+					}
+				}
+				if (filled > 0) {
+					buffer[pos++] = (byte) (value << (8 - filled));
+				}
+			}
+		}
+		else {
+			int count = width * height;
+			for (int i = 0; i < count; i++) {
+				buffer[pos++] = (byte) palette.indexOf(pixels[i]);
+			}
+		}
+
+		data.setPosition(pos);
+		writeData(stream, message);
+	}
+
+	/**
+	 * Each color component is sent as difference from its prediction,
+	 * <I>left + above - above left</I>, limited to range of component.
+	 */
+	private void encodeGradient(int width, int height, MessageBuffer message) {
+		message.writeU8((STREAM_GRADIENT << 4) | EXPLICIT_FILTER);
+		message.writeU8(FILTER_GRADIENT);
+
+		int pos = data.reserve(width * height * 3);
+		byte[] buffer = data.array();
+
+		for (int row = 0; row < height; row++) {
+			for (int col = 0; col < width; col++) {
+				int i = row * width + col;
+				int pixel = toRGB(pixels[i]);
+				int left = col > 0 ? toRGB(pixels[i - 1]) : 0;
+				int above = row > 0 ? toRGB(pixels[i - width]) : 0;
+				int aboveLeft = col > 0 && row > 0 ? toRGB(pixels[i - width - 1]) : 0;
+
+				for (int shift = 16; shift >= 0; shift -= 8) {
+					int predicted = ((left >> shift) & 0xFF) + ((above >> shift) & 0xFF) - ((aboveLeft >> shift) & 0xFF);
+					predicted = Math.max(0, Math.min(255, predicted));
+					buffer[pos++] = (byte) (((pixel >> shift) & 0xFF) - predicted);
+				}
+			}
+		}
+
+		data.setPosition(pos);
+		writeData(STREAM_GRADIENT, message);
+	}
+
+	private boolean isJpegAllowed(int count) {
+		PixelFormat format = pixelTranslator.getPixelFormat();
+		return qualityLevel >= 0 && count >= MIN_JPEG_SIZE
+				&& format.isTrueColor() && format.getBitsPerPixel() > 8;
+	}
+
+	/**
+	 * JPEG image is made from screen pixels, client converts
+	 * decoded image to its pixel format.
+	 */
+	private void encodeJpeg(int[] frame, int scanline, Rectangle rect, MessageBuffer message) throws IOException {
+		if (jpegWriter == null) {
+			jpegWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+			jpegParam = jpegWriter.getDefaultWriteParam();
+			jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			jpegParam.setCompressionQuality(JPEG_QUALITY[qualityLevel] / 100f);
+		}
+
+		if (jpegImage == null || jpegImage.getWidth() < rect.width || jpegImage.getHeight() < rect.height) {
+			int width = Math.max(rect.width, jpegImage == null ? 0 : jpegImage.getWidth());
+			int height = Math.max(rect.height, jpegImage == null ? 0 : jpegImage.getHeight());
+			jpegImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		}
+
+		int[] imagePixels = ((DataBufferInt) jpegImage.getRaster().getDataBuffer()).getData();
+		int imageWidth = jpegImage.getWidth();
+		for (int row = 0; row < rect.height; row++) {
+			System.arraycopy(frame, (rect.y + row) * scanline + rect.x, imagePixels, row * imageWidth, rect.width);
+		}
+
+		jpegOutput.reset();
+		ImageOutputStream stream = new MemoryCacheImageOutputStream(jpegOutput);
+		jpegWriter.setOutput(stream);
+		jpegWriter.write(null, new IIOImage(jpegImage.getSubimage(0, 0, rect.width, rect.height), null, null), jpegParam);
+		stream.close();
+
+		message.writeU8(JPEG_COMPRESSION);
+		writeCompactLength(jpegOutput.size(), message);
+		message.write(jpegOutput.array(), 0, jpegOutput.size());
+	}
+
+	private void encodeFullColor(int count, MessageBuffer message) {
+		message.writeU8(STREAM_FULL_COLOR << 4);
+
+		int pos = data.reserve(count * 4);
+		byte[] buffer = data.array();
+		for (int i = 0; i < count; i++) {
+			pos = writeTPixel(pixels[i], buffer, pos);
+		}
+
+		data.setPosition(pos);
+		writeData(STREAM_FULL_COLOR, message);
+	}
+
+	/**
+	 * Write filtered data, compressed with given stream unless it is too short,
+	 * and empty data buffer.
+	 */
+	private void writeData(int stream, MessageBuffer message) {
+		if (data.size() < MIN_TO_COMPRESS) {
+			message.write(data.array(), 0, data.size());
+			data.reset();
+			return;
+		}
+
+		zlib[stream].write(data.array(), 0, data.size());
+		data.reset();
+
+		MessageBuffer compressed = zlib[stream].flush();
+		writeCompactLength(compressed.size(), message);
+		message.write(compressed.array(), 0, compressed.size());
+		zlib[stream].clear();
+	}
+
+	/**
+	 * Length is written in 1 to 3 bytes, 7 bits in each byte,
+	 * highest bit tells that another byte follows.
+	 */
+	static void writeCompactLength(int length, MessageBuffer message) {
+		if (length < 0x80) {
+			message.writeU8(length);
+		}
+		else if (length < 0x4000) {
+			message.writeU8((length & 0x7F) | 0x80);
+			message.writeU8(length >> 7);
+		}
+		else {
+			message.writeU8((length & 0x7F) | 0x80);
+			message.writeU8(((length >> 7) & 0x7F) | 0x80);
+			message.writeU8(length >> 14);
+		}
+	}
+
+	/**
+	 * Check if TPIXEL may be 3 bytes for pixel format.
+	 */
+	private void setPixelTranslator(PixelTranslator pixelTranslator) {
+		if (this.pixelTranslator == pixelTranslator) {
+			return;
+		}
+		this.pixelTranslator = pixelTranslator;
+
+		PixelFormat format = pixelTranslator.getPixelFormat();
+		tpixel24 = format.isTrueColor() && format.getBitsPerPixel() == 32 && format.getDepth() == 24
+				&& format.getRedMax() == 255 && format.getGreenMax() == 255 && format.getBlueMax() == 255;
+		redShift = format.getRedShift();
+		greenShift = format.getGreenShift();
+		blueShift = format.getBlueShift();
+	}
+
+	private int tpixelSize() {
+		return tpixel24 ? 3 : pixelTranslator.getBytesPerPixel();
+	}
+
+	/**
+	 * @return pixel value in <I>0x00RRGGBB</I> form, valid only for 3 byte TPIXEL
+	 */
+	private int toRGB(int pixelValue) {
+		return (((pixelValue >>> redShift) & 0xFF) << 16)
+				| (((pixelValue >>> greenShift) & 0xFF) << 8)
+				| ((pixelValue >>> blueShift) & 0xFF);
+	}
+
+	private int writeTPixel(int pixelValue, byte[] buffer, int pos) {
+		if (!tpixel24) {
+			return pixelTranslator.writePixel(pixelValue, buffer, pos);
+		}
+		buffer[pos]     = (byte) (pixelValue >>> redShift);
+		buffer[pos + 1] = (byte) (pixelValue >>> greenShift);
+		buffer[pos + 2] = (byte) (pixelValue >>> blueShift);
+		return pos + 3;
+	}
+
+	private void writeTPixel(int pixelValue, MessageBuffer message) {
+		int pos = message.reserve(4);
+		message.setPosition(writeTPixel(pixelValue, message.array(), pos));
+	}
+
+	/**
+	 * Output of JPEG writer, reused for all images.
+	 */
+	private static class JpegOutput extends ByteArrayOutputStream {
+
+		JpegOutput() {
+			super(64 * 1024);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+}
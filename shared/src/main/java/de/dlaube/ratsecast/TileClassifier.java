@@ -0,0 +1,217 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * Classifies screen tiles by their content, so each tile can be sent with
+ * encoding that suits it best.<BR>
+ * Distinct colors are counted with {@link TilePalette}, with early exit once tile
+ * has more colors than any palette may hold. Tiles with many colors are checked
+ * for smoothness, average error of gradient prediction. Each client session also
+ * keeps short history of which tiles changed in last updates, so tiles that change
+ * on almost every update (video, animation) are recognized.<BR>
+ * For each class, {@link #getPreferredEncodings(int, boolean)} gives encodings
+ * ordered from lowest to highest cost, counting both bytes sent and CPU time
+ * needed to encode tile.
+ */
+public class TileClassifier {
+
+	/**
+	 * Tile of single color.
+	 */
+	public static final int SOLID = 0;
+
+	/**
+	 * Tile with few colors, eg. text and user interface.
+	 */
+	public static final int PALETTE = 1;
+
+	/**
+	 * Tile with many colors that change smoothly, eg. gradients and photos.
+	 */
+	public static final int SMOOTH = 2;
+
+	/**
+	 * Tile with many colors and sharp edges.
+	 */
+	public static final int DETAIL = 3;
+
+	/**
+	 * Tile with many colors that changes on almost every update.
+	 */
+	public static final int VIDEO = 4;
+
+	/**
+	 * Largest average prediction error, per color component, of smooth tile.
+	 */
+	public static final int SMOOTH_THRESHOLD = 8;
+
+	/**
+	 * Number of last updates, out of 8, in which tile has to change to be treated as video.
+	 */
+	private static final int VIDEO_CHANGES = 6;
+
+	private static final int RAW = 0;
+	private static final int RRE = 2;
+	private static final int CORRE = 4;
+	private static final int HEXTILE = 5;
+	private static final int ZLIB = 6;
+	private static final int TIGHT = 7;
+	private static final int TRLE = 15;
+	private static final int ZRLE = 16;
+
+	/**
+	 * Encodings for each class, cheapest first. Raw is always last.
+	 */
+	private static final int[][] PREFERRED = {
+		/* SOLID */   {TIGHT, CORRE, RRE, TRLE, HEXTILE, ZRLE, ZLIB, RAW},
+		/* PALETTE */ {ZRLE, TIGHT, TRLE, HEXTILE, ZLIB, CORRE, RRE, RAW},
+		/* SMOOTH */  {TIGHT, ZRLE, ZLIB, TRLE, HEXTILE, RAW},
+		/* DETAIL */  {ZRLE, TIGHT, ZLIB, TRLE, HEXTILE, RAW},
+		/* VIDEO */   {ZRLE, TIGHT, ZLIB, TRLE, HEXTILE, RAW},
+	};
+
+	/**
+	 * Encodings for video tiles when client accepts lossy compression.
+	 */
+	private static final int[] PREFERRED_LOSSY_VIDEO = {TIGHT, ZRLE, ZLIB, TRLE, HEXTILE, RAW};
+
+	private final int tileSize;
+	private final TilePalette palette = new TilePalette();
+	private final int[] tile;
+
+	private int tilesX, tilesY;
+
+	/**
+	 * One bit for each of last 8 updates, set if tile changed in that update.
+	 */
+	private byte[] history = new byte[0];
+
+	/**
+	 * @param tileSize width and height of tile in pixels
+	 */
+	public TileClassifier(int tileSize) {
+		this.tileSize = tileSize;
+		this.tile = new int[tileSize * tileSize];
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Remember which tiles changed in this update.
+	 * History is cleared when screen size changes.
+	 *
+	 * @param damage changed rectangles
+	 * @param width screen width
+	 * @param height screen height
+	 */
+	public void recordDamage(List<Rectangle> damage, int width, int height) {
+		int newTilesX = (width + tileSize - 1) / tileSize;
+		int newTilesY = (height + tileSize - 1) / tileSize;
+		if (newTilesX != tilesX || newTilesY != tilesY) {
+			tilesX = newTilesX;
+			tilesY = newTilesY;
+			history = new byte[tilesX * tilesY];
+		}
+
+		for (int i = 0; i < history.length; i++) {
+			history[i] = (byte) (history[i] << 1);
+		}
+
+		for (Rectangle rect : damage) {
+			int lastX = Math.min((rect.x + rect.width - 1) / tileSize, tilesX - 1);
+			int lastY = Math.min((rect.y + rect.height - 1) / tileSize, tilesY - 1);
+			for (int ty = rect.y / tileSize; ty <= lastY; ty++) {
+				for (int tx = rect.x / tileSize; tx <= lastX; tx++) {
+					history[ty * tilesX + tx] |= 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Classify tile. Tile must not be larger than tile size
+	 * and must not cross tile boundary.
+	 *
+	 * @param frame screen pixels
+	 * @param scanline number of pixels in one screen row
+	 * @param rect tile area
+	 * @return tile class, one of {@link #SOLID}, {@link #PALETTE},
+	 * {@link #SMOOTH}, {@link #DETAIL} or {@link #VIDEO}
+	 */
+	public int classify(int[] frame, int scanline, Rectangle rect) {
+		int count = rect.width * rect.height;
+		for (int row = 0; row < rect.height; row++) {
+			System.arraycopy(frame, (rect.y + row) * scanline + rect.x, tile, row * rect.width, rect.width);
+		}
+
+		if (palette.analyze(tile, count, TilePalette.MAX_SIZE)) {
+			return palette.getSize() == 1 ? SOLID : PALETTE;
+		}
+
+		if (Integer.bitCount(getHistory(rect.x / tileSize, rect.y / tileSize)) >= VIDEO_CHANGES) {
+			return VIDEO;
+		}
+
+		return gradientError(tile, 0, rect.width, rect.width, rect.height) <= SMOOTH_THRESHOLD ? SMOOTH : DETAIL;
+	}
+
+	private int getHistory(int tileX, int tileY) {
+		if (tileX >= tilesX || tileY >= tilesY) {
+			return 0;
+		}
+		return history[tileY * tilesX + tileX] & 0xFF;
+	}
+
+	/**
+	 * @param tileClass class of tile
+	 * @param lossy true if client accepts lossy compression
+	 * @return encoding types, cheapest first
+	 */
+	public static int[] getPreferredEncodings(int tileClass, boolean lossy) {
+		if (tileClass == VIDEO && lossy) {
+			return PREFERRED_LOSSY_VIDEO;
+		}
+		return PREFERRED[tileClass];
+	}
+
+	/**
+	 * Average error of gradient prediction, <I>left + above - above left</I>,
+	 * per color component. Every fourth row is sampled.
+	 *
+	 * @param pixels pixels in <I>0x00RRGGBB</I> form
+	 * @param offset index of top left pixel
+	 * @param scanline number of pixels in one row
+	 * @param width area width
+	 * @param height area height
+	 * @return average error, 0-255, or <I>Integer.MAX_VALUE</I> if area is too small
+	 */
+	public static int gradientError(int[] pixels, int offset, int scanline, int width, int height) {
+		if (width < 2 || height < 2) {
+			return Integer.MAX_VALUE;
+		}
+
+		long error = 0;
+		int samples = 0;
+		for (int row = 1; row < height; row += 4) {
+			for (int col = 1; col < width; col++) {
+				int i = offset + row * scanline + col;
+				int pixel = pixels[i];
+				int left = pixels[i - 1];
+				int above = pixels[i - scanline];
+				int aboveLeft = pixels[i - scanline - 1];
+
+				for (int shift = 16; shift >= 0; shift -= 8) {
+					int predicted = ((left >> shift) & 0xFF) + ((above >> shift) & 0xFF) - ((aboveLeft >> shift) & 0xFF);
+					predicted = Math.max(0, Math.min(255, predicted));
+					error += Math.abs(((pixel >> shift) & 0xFF) - predicted);
+				}
+				samples += 3;
+			}
+		}
+		return (int) (error / samples);
+	}
+}
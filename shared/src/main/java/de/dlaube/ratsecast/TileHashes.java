@@ -0,0 +1,151 @@
+package de.dlaube.ratsecast;
+
+/**
+ * 64-bit content hash of every tile of a frame.<BR>
+ * Hash is built row by row: each row segment of a tile is mixed into tile hash
+ * with xxHash64 style multiply-rotate rounds, two pixels per round, and final
+ * avalanche step is applied once tile is complete. Frame is read only once, in
+ * memory order, so no copy of frame is needed.<BR>
+ * Tiles with different hash certainly differ. Tiles with same hash are treated as
+ * unchanged, chance of collision is about 2<sup>-64</sup>. Hash does not depend on
+ * tile position, so same content gives same hash anywhere on screen.
+ */
+public class TileHashes {
+
+	private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME64_3 = 0x165667B19E3779F9L;
+	private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+	/**
+	 * Initial value of every hash.
+	 */
+	static final long SEED = PRIME64_5;
+
+	private final int width, height, tileSize;
+	private final int tilesX, tilesY;
+	private final long[] hashes;
+
+	private TileHashes(int width, int height, int tileSize) {
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		this.tilesX = (width + tileSize - 1) / tileSize;
+		this.tilesY = (height + tileSize - 1) / tileSize;
+		this.hashes = new long[tilesX * tilesY];
+	}
+
+	/**
+	 * Compute hashes of all tiles.
+	 *
+	 * @param frame screen pixels
+	 * @param width screen width
+	 * @param height screen height
+	 * @param tileSize width and height of tile in pixels
+	 * @return tile hashes
+	 */
+	public static TileHashes compute(int[] frame, int width, int height, int tileSize) {
+		TileHashes tileHashes = new TileHashes(width, height, tileSize);
+		long[] hashes = tileHashes.hashes;
+
+		for (int tileY = 0; tileY < tileHashes.tilesY; tileY++) {
+			int first = tileY * tileHashes.tilesX;
+			for (int t = 0; t < tileHashes.tilesX; t++) {
+				hashes[first + t] = SEED;
+			}
+
+			int rowEnd = Math.min((tileY + 1) * tileSize, height);
+			for (int row = tileY * tileSize; row < rowEnd; row++) {
+				int rowStart = row * width;
+				for (int t = 0; t < tileHashes.tilesX; t++) {
+					int start = rowStart + t * tileSize;
+					int end = rowStart + Math.min((t + 1) * tileSize, width);
+					hashes[first + t] = hashRow(hashes[first + t], frame, start, end);
+				}
+			}
+
+			for (int t = 0; t < tileHashes.tilesX; t++) {
+				hashes[first + t] = avalanche(hashes[first + t]);
+			}
+		}
+
+		return tileHashes;
+	}
+
+	/**
+	 * Mix one row segment into hash.
+	 */
+	private static long hashRow(long hash, int[] frame, int start, int end) {
+		int i = start;
+		for (; i + 1 < end; i += 2) {
+			long value = ((long) frame[i] << 32) | (frame[i + 1] & 0xFFFFFFFFL);
+			hash = round(hash, value);
+		}
+		if (i < end) {
+			hash = round(hash, frame[i] & 0xFFFFFFFFL);
+		}
+		return hash;
+	}
+
+	/**
+	 * Hash of one row segment, finished and ready for comparison.
+	 *
+	 * @param frame screen pixels
+	 * @param start index of first pixel
+	 * @param end index after last pixel
+	 * @return hash value
+	 */
+	static long hashSegment(int[] frame, int start, int end) {
+		return avalanche(hashRow(SEED, frame, start, end));
+	}
+
+	/**
+	 * Mix single pixel into hash.
+	 */
+	static long mix(long hash, int pixel) {
+		return round(hash, pixel & 0xFFFFFFFFL);
+	}
+
+	private static long round(long hash, long value) {
+		hash ^= Long.rotateLeft(value * PRIME64_2, 31) * PRIME64_1;
+		return Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_3;
+	}
+
+	static long avalanche(long hash) {
+		hash ^= hash >>> 33;
+		hash *= PRIME64_2;
+		hash ^= hash >>> 29;
+		hash *= PRIME64_3;
+		hash ^= hash >>> 32;
+		return hash;
+	}
+
+	/**
+	 * @param other hashes of another frame
+	 * @return true if other hashes were computed for frame of same size and same tile size
+	 */
+	public boolean isCompatible(TileHashes other) {
+		return other != null && width == other.width && height == other.height && tileSize == other.tileSize;
+	}
+
+	/**
+	 * @param tileX tile column
+	 * @param tileY tile row
+	 * @return hash of tile
+	 */
+	public long get(int tileX, int tileY) {
+		return hashes[tileY * tilesX + tileX];
+	}
+
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	public int getTilesY() {
+		return tilesY;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+}
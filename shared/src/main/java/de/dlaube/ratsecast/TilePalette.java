@@ -0,0 +1,153 @@
+package de.dlaube.ratsecast;
+
+import java.util.Arrays;
+
+/**
+ * Palette analysis of one tile, shared by palette based encoders.<BR>
+ * Distinct pixel values of tile are collected in small hash table, with early
+ * exit when tile has more colors than palette may hold. At same time runs of
+ * equal pixels are counted, so encoder can estimate size of RLE encodings.
+ */
+public class TilePalette {
+
+	/**
+	 * Largest palette that any palette based encoding can use.
+	 */
+	public static final int MAX_SIZE = 127;
+
+	private static final int HASH_SIZE = 256;
+
+	private final int[] colors = new int[MAX_SIZE + 1];
+	private final int[] hashKeys = new int[HASH_SIZE];
+	private final byte[] hashIndexes = new byte[HASH_SIZE];
+	private final int[] hashStamps = new int[HASH_SIZE];
+	private int stamp;
+
+	private int size;
+	private int runs;
+	private int singlePixels;
+
+	/**
+	 * Analyze pixels of tile.
+	 *
+	 * @param pixels pixel values, in client pixel format
+	 * @param count number of pixels
+	 * @param maxColors largest palette size caller is interested in, not more than {@link #MAX_SIZE}
+	 * @return true if tile has at most <I>maxColors</I> colors
+	 */
+	public boolean analyze(int[] pixels, int count, int maxColors) {
+		clear();
+
+		runs = 0;
+		singlePixels = 0;
+		int runLength = 0;
+
+		for (int i = 0; i < count; i++) {
+			int pixel = pixels[i];
+			if (i > 0 && pixel == pixels[i - 1]) {
+				runLength++;
+				continue;
+			}
+			if (runLength == 1) {
+				singlePixels++;
+			}
+			runs++;
+			runLength = 1;
+
+			if (indexOf(pixel) < 0) {
+				if (size == maxColors) {
+					size = maxColors + 1;
+					return false;
+				}
+				add(pixel);
+			}
+		}
+		if (runLength == 1) {
+			singlePixels++;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Forget all colors.
+	 */
+	public void clear() {
+		size = 0;
+		stamp++;
+		if (stamp == 0) {
+			Arrays.fill(hashStamps, 0);
+			stamp = 1;
+		}
+	}
+
+	/**
+	 * Add color to palette, if it is not already there.
+	 *
+	 * @param pixel pixel value
+	 * @return index of color
+	 */
+	public int add(int pixel) {
+		int slot = slot(pixel);
+		while (hashStamps[slot] == stamp) {
+			if (hashKeys[slot] == pixel) {
+				return hashIndexes[slot];
+			}
+			slot = (slot + 1) & (HASH_SIZE - 1);
+		}
+		hashStamps[slot] = stamp;
+		hashKeys[slot] = pixel;
+		hashIndexes[slot] = (byte) size;
+		colors[size] = pixel;
+		return size++;
+	}
+
+	/**
+	 * @param pixel pixel value
+	 * @return index of color in palette, or -1 if it is not in palette
+	 */
+	public int indexOf(int pixel) {
+		int slot = slot(pixel);
+		while (hashStamps[slot] == stamp) {
+			if (hashKeys[slot] == pixel) {
+				return hashIndexes[slot];
+			}
+			slot = (slot + 1) & (HASH_SIZE - 1);
+		}
+		return -1;
+	}
+
+	private static int slot(int pixel) {
+		int h = pixel * 0x9E3779B1;
+		return (h ^ (h >>> 16)) & (HASH_SIZE - 1);
+	}
+
+	/**
+	 * @return number of colors, more than requested maximum if analysis stopped early
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @param index index in palette
+	 * @return pixel value
+	 */
+	public int getColor(int index) {
+		return colors[index];
+	}
+
+	/**
+	 * @return number of runs of equal pixels, valid only if analysis did not stop early
+	 */
+	public int getRuns() {
+		return runs;
+	}
+
+	/**
+	 * @return number of runs with only one pixel, valid only if analysis did not stop early
+	 */
+	public int getSinglePixels() {
+		return singlePixels;
+	}
+}
@@ -0,0 +1,41 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+
+/**
+ * TRLE encoding (encoding type 15).<BR>
+ * Rectangle is divided into 16x16 tiles, and each tile is encoded with
+ * {@link RleTileCoder}, same as in ZRLE, but data is not compressed. It costs
+ * much less CPU time than ZRLE, for clients on fast network.
+ */
+public class TrleEncoder implements Encoder {
+
+	private static final int TILE_SIZE = 16;
+
+	private final RleTileCoder tileCoder = new RleTileCoder(TILE_SIZE);
+
+	@Override
+	public int getEncodingType() {
+		return 15;
+	}
+
+	@Override
+	public boolean isStateless() {
+		return true;
+	}
+
+	@Override
+	public void encode(int[] frame, int scanline, Rectangle rect, PixelTranslator pixelTranslator, MessageBuffer message) throws IOException {
+		tileCoder.setPixelTranslator(pixelTranslator);
+
+		for (int y = rect.y; y < rect.y + rect.height; y += TILE_SIZE) {
+			int tileHeight = Math.min(TILE_SIZE, rect.y + rect.height - y);
+			for (int x = rect.x; x < rect.x + rect.width; x += TILE_SIZE) {
+				int tileWidth = Math.min(TILE_SIZE, rect.x + rect.width - x);
+				tileCoder.encodeTile(frame, scanline, x, y, tileWidth, tileHeight, message);
+			}
+			message.checkpoint();
+		}
+	}
+}
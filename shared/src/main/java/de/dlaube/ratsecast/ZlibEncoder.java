@@ -0,0 +1,101 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+
+/**
+ * Zlib encoding (encoding type 6).<BR>
+ * Pixels are translated same as in raw encoding and compressed with one zlib
+ * stream that lives as long as connection.<BR>
+ * Compression level adapts to connection. After each rectangle, time spent
+ * compressing is compared with time needed to send compressed data, estimated
+ * from {@link ThroughputMeter}. When compression takes longer, level is lowered,
+ * and when it takes less than half of that time, level is raised, up to level
+ * that client requested.
+ */
+public class ZlibEncoder implements Encoder {
+
+	/**
+	 * Pixels are translated and compressed in bands of about this many bytes.
+	 */
+	private static final int BAND_SIZE = 64 * 1024;
+
+	private static final int MIN_LEVEL = 1;
+
+	private final ZlibStream zlib;
+	private final MessageBuffer data = new MessageBuffer(BAND_SIZE);
+	private final ThroughputMeter throughputMeter;
+
+	private int maxLevel;
+
+	/**
+	 * @param compressionLevel highest zlib compression level, 1-9
+	 * @param throughputMeter meter of socket throughput, or null to keep level fixed
+	 */
+	public ZlibEncoder(int compressionLevel, ThroughputMeter throughputMeter) {
+		this.maxLevel = Math.max(MIN_LEVEL, compressionLevel);
+		this.zlib = new ZlibStream(maxLevel);
+		this.throughputMeter = throughputMeter;
+	}
+
+	@Override
+	public int getEncodingType() {
+		return 6;
+	}
+
+	@Override
+	public void setCompressionLevel(int level) {
+		maxLevel = Math.max(MIN_LEVEL, level);
+		zlib.setLevel(maxLevel);
+	}
+
+	@Override
+	public void close() {
+		zlib.end();
+	}
+
+	@Override
+	public void encode(int[] frame, int scanline, Rectangle rect, PixelTranslator pixelTranslator, MessageBuffer message) throws IOException {
+		int rowLength = rect.width * pixelTranslator.getBytesPerPixel();
+		int rowsPerBand = Math.max(1, BAND_SIZE / Math.max(1, rowLength));
+		int offset = rect.y * scanline + rect.x;
+
+		long start = System.nanoTime();
+
+		for (int row = 0; row < rect.height; row += rowsPerBand) {
+			int rows = Math.min(rowsPerBand, rect.height - row);
+			int pos = data.reserve(rows * rowLength);
+			pos = pixelTranslator.translate(frame, offset + row * scanline, scanline, rect.width, rows, data.array(), pos);
+			zlib.write(data.array(), 0, pos);
+			data.reset();
+		}
+
+		MessageBuffer compressed = zlib.flush();
+		long encodeNanos = System.nanoTime() - start;
+
+		message.writeS32(compressed.size());
+		message.write(compressed.array(), 0, compressed.size());
+		adaptLevel(encodeNanos, compressed.size());
+		zlib.clear();
+		message.checkpoint();
+	}
+
+	private void adaptLevel(long encodeNanos, int compressedSize) {
+		if (throughputMeter == null) {
+			return;
+		}
+		double bytesPerSecond = throughputMeter.getBytesPerSecond();
+		if (bytesPerSecond <= 0) {
+			return;
+		}
+
+		double sendNanos = compressedSize * 1e9 / bytesPerSecond;
+		int level = zlib.getLevel();
+		if (encodeNanos > sendNanos && level > MIN_LEVEL) {
+			zlib.setLevel(level - 1);
+		}
+		else if (encodeNanos * 2 < sendNanos && level < maxLevel) {
+			zlib.setLevel(level + 1);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package de.dlaube.ratsecast;
+
+import java.util.zip.Deflater;
+
+/**
+ * Zlib stream that lives as long as client connection.<BR>
+ * Encodings like ZRLE, Tight and Zlib require that compressor state is kept
+ * between rectangles, so dictionary built on earlier updates helps compress
+ * following ones. Data of one rectangle is written with {@link #write(byte[], int, int)}
+ * and {@link #flush()} returns compressed bytes, ended with sync flush so client
+ * can decompress them immediately.
+ */
+public class ZlibStream {
+
+	private static final int OUTPUT_STEP = 16 * 1024;
+
+	private final Deflater deflater;
+	private final MessageBuffer compressed;
+	private int level;
+
+	/**
+	 * @param level compression level, 0-9
+	 */
+	public ZlibStream(int level) {
+		this.level = level;
+		this.deflater = new Deflater(level);
+		this.compressed = new MessageBuffer(OUTPUT_STEP);
+	}
+
+	/**
+	 * Change compression level. It takes effect with next written data.
+	 *
+	 * @param level compression level, 0-9
+	 */
+	public void setLevel(int level) {
+		if (this.level != level) {
+			this.level = level;
+			deflater.setLevel(level);
+		}
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Compress data, compressed bytes are collected until {@link #flush()}.
+	 *
+	 * @param data uncompressed data
+	 * @param offset position of data in array
+	 * @param length number of bytes
+	 */
+	public void write(byte[] data, int offset, int length) {
+		if (length == 0) {
+			return;
+		}
+		deflater.setInput(data, offset, length);
+		while (!deflater.needsInput()) {
+			deflate(Deflater.NO_FLUSH);
+		}
+	}
+
+	/**
+	 * Finish compressed block of data written since last flush.
+	 * Returned buffer is valid until next write.
+	 *
+	 * @return buffer with compressed data
+	 */
+	public MessageBuffer flush() {
+		while (deflate(Deflater.SYNC_FLUSH) == OUTPUT_STEP) {
+			/*
+			 * Output step was filled, there may be more output.
+			 */
+		}
+		return compressed;
+	}
+
+	/**
+	 * Discard compressed data that was returned by {@link #flush()}.
+	 */
+	public void clear() {
+		compressed.reset();
+	}
+
+	/**
+	 * Release native resources of compressor.
+	 */
+	public void end() {
+		deflater.end();
+	}
+
+	private int deflate(int flush) {
+		int pos = compressed.reserve(OUTPUT_STEP);
+		int len = deflater.deflate(compressed.array(), pos, OUTPUT_STEP, flush);
+		compressed.setPosition(pos + len);
+		return len;
+	}
+}
@@ -0,0 +1,72 @@
+package de.dlaube.ratsecast;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+
+/**
+ * ZRLE encoding (encoding type 16).<BR>
+ * Rectangle is divided into 64x64 tiles. Each tile is encoded with {@link RleTileCoder}
+ * and all tiles are compressed with one zlib stream that lives as long as
+ * connection.
+ */
+public class ZrleEncoder implements Encoder {
+
+	private static final int TILE_SIZE = 64;
+
+	private final ZlibStream zlib;
+	private final MessageBuffer tileData;
+	private final RleTileCoder tileCoder = new RleTileCoder(TILE_SIZE);
+
+	public ZrleEncoder() {
+		this(6);
+	}
+
+	/**
+	 * @param compressionLevel zlib compression level, 0-9
+	 */
+	public ZrleEncoder(int compressionLevel) {
+		zlib = new ZlibStream(compressionLevel);
+		tileData = new MessageBuffer(64 * 1024);
+	}
+
+	@Override
+	public int getEncodingType() {
+		return 16;
+	}
+
+	@Override
+	public void setCompressionLevel(int level) {
+		zlib.setLevel(level);
+	}
+
+	@Override
+	public void close() {
+		zlib.end();
+	}
+
+	@Override
+	public void encode(int[] frame, int scanline, Rectangle rect, PixelTranslator pixelTranslator, MessageBuffer message) throws IOException {
+		tileCoder.setPixelTranslator(pixelTranslator);
+
+		for (int y = rect.y; y < rect.y + rect.height; y += TILE_SIZE) {
+			int tileHeight = Math.min(TILE_SIZE, rect.y + rect.height - y);
+			for (int x = rect.x; x < rect.x + rect.width; x += TILE_SIZE) {
+				int tileWidth = Math.min(TILE_SIZE, rect.x + rect.width - x);
+				tileCoder.encodeTile(frame, scanline, x, y, tileWidth, tileHeight, tileData);
+			}
+
+			/*
+			 * Compress one row of tiles at a time, so uncompressed data
+			 * never grows beyond one row of tiles.
+			 */
+			zlib.write(tileData.array(), 0, tileData.size());
+			tileData.reset();
+		}
+
+		MessageBuffer compressed = zlib.flush();
+		message.writeS32(compressed.size());
+		message.write(compressed.array(), 0, compressed.size());
+		zlib.clear();
+		message.checkpoint();
+	}
+}